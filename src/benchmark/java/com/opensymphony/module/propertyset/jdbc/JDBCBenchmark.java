@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2002-2003 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.module.propertyset.jdbc;
+
+import java.util.*;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+
+import com.opensymphony.module.propertyset.PropertySet;
+import com.opensymphony.module.propertyset.PropertySetManager;
+import org.h2.jdbcx.JdbcDataSource;
+
+/**
+ * Compares the jdbc propertyset with the ejb3 one over the same table, on an in-memory H2 database.
+ * Each round writes, reads and lists a number of keys through both, on separate entities so they
+ * do not share rows. The first rounds warm up the JIT and are not meant to be read.
+ * <p/>
+ * Run with <code>gradle benchmark</code>, optionally passing the number of keys and rounds as arguments.
+ */
+public class JDBCBenchmark {
+  //~ Static fields/initializers /////////////////////////////////////////////
+
+  private static final String URL = "jdbc:h2:mem:propertyset;DB_CLOSE_DELAY=-1";
+
+  //~ Methods ////////////////////////////////////////////////////////////////
+
+  public static void main(String[] args) {
+    int keys = (args.length > 0) ? Integer.parseInt(args[0]) : 5000;
+    int rounds = (args.length > 1) ? Integer.parseInt(args[1]) : 5;
+
+    Map<String, String> properties = new HashMap<String, String>();
+    properties.put("hibernate.connection.driver_class", "org.h2.Driver");
+    properties.put("hibernate.connection.url", URL);
+    properties.put("hibernate.dialect", "org.hibernate.dialect.H2Dialect");
+    properties.put("hibernate.hbm2ddl.auto", "create");
+
+    EntityManagerFactory factory = Persistence.createEntityManagerFactory("pu", properties);
+    JdbcDataSource dataSource = new JdbcDataSource();
+    dataSource.setURL(URL);
+
+    try {
+      for(int round = 1; round <= rounds; round++) {
+        EntityManager manager = factory.createEntityManager();
+
+        try {
+          Map<String, Object> ejb3 = new HashMap<String, Object>();
+          ejb3.put("manager", manager);
+          ejb3.put("entityName", "ejb3");
+          ejb3.put("entityId", (long)round);
+
+          Map<String, Object> jdbc = new HashMap<String, Object>();
+          jdbc.put("datasource", dataSource);
+          jdbc.put("entityName", "jdbc");
+          jdbc.put("entityId", (long)round);
+
+          System.out.println("round " + round + ", " + keys + " keys");
+          run("ejb3", PropertySetManager.getInstance("ejb3", ejb3), keys);
+          run("jdbc", PropertySetManager.getInstance("jdbc", jdbc), keys);
+        } finally {
+          manager.close();
+        }
+      }
+    } finally {
+      factory.close();
+    }
+  }
+
+  private static void run(String name, PropertySet ps, int keys) {
+    long start = System.nanoTime();
+
+    for(int i = 0; i < keys; i++) {
+      ps.setString("key." + i, "value " + i);
+    }
+
+    long written = System.nanoTime();
+
+    for(int i = 0; i < keys; i++) {
+      ps.getString("key." + i);
+    }
+
+    long read = System.nanoTime();
+
+    for(int i = 0; i < keys; i++) {
+      ps.setString("key." + i, "updated " + i);
+    }
+
+    long updated = System.nanoTime();
+    int listed = ps.getKeys("key.").size();
+    long end = System.nanoTime();
+
+    System.out.println("  " + name + ": insert " + millis(written - start) + "ms, get " + millis(read - written) + "ms, update " + millis(updated - read) + "ms, list " + listed + " keys " + millis(end - updated) + "ms");
+  }
+
+  private static long millis(long nanos) {
+    return nanos / 1000000;
+  }
+}
@@ -35,7 +35,7 @@ import java.util.*;
  * @author <a href="mailto:hani@fate.demon.co.uk">Hani Suleiman</a>
  * @version $Revision: 151 $
  */
-public abstract class AbstractPropertySet implements PropertySet {
+public abstract class AbstractPropertySet implements PropertySet, TypedLookup, KeyListing, EntryListing {
   //~ Methods ////////////////////////////////////////////////////////////////
 
   public void setAsActualType(String key, Object value) throws PropertyException {
@@ -206,6 +206,70 @@ public abstract class AbstractPropertySet implements PropertySet {
     }
   }
 
+  /**
+   * Sorts the result of <code>getKeys(prefix,type)</code> and returns the requested slice of it.
+   * Implementations that can page in their storage should override this.
+   */
+  public List<String> getKeys(String prefix, int type, String after, int limit) throws PropertyException {
+    List<String> keys = sortedKeys(prefix, type);
+    int from = 0;
+
+    if(after != null) {
+      from = Collections.binarySearch(keys, after);
+      from = (from < 0) ? (-from - 1) : (from + 1);
+    }
+
+    //limit may be Integer.MAX_VALUE, so from + limit could overflow
+    int to = (limit > (keys.size() - from)) ? keys.size() : (from + limit);
+
+    return new ArrayList<String>(keys.subList(from, to));
+  }
+
+  /**
+   * Iterates over a sorted copy of <code>getKeys(prefix,type)</code>, taken once.
+   * Implementations that can page in their storage should override this, for example with a {@link PagedCursor}.
+   */
+  public Cursor iterateKeys(String prefix, int type, int fetchSize) throws PropertyException {
+    if(fetchSize <= 0) {
+      throw new IllegalArgumentException("fetch size must be positive");
+    }
+
+    return new SnapshotCursor(sortedKeys(prefix, type));
+  }
+
+  /**
+   * Calls <code>getType(key)</code> and <code>get(type,key)</code> for every key of <code>getKeys(prefix,0)</code>.
+   * Implementations that can read all values at once should override this.
+   */
+  public void visitEntries(String prefix, Visitor visitor) throws PropertyException {
+    for(String key : getKeys(prefix, 0)) {
+      int type = getType(key);
+
+      //removed since the keys were listed
+      if(type == 0) {
+        continue;
+      }
+
+      if(!visitor.visit(key, type, get(type, key))) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Calls <code>get(type,key)</code>, and <code>exists(key)</code> if that returned null.
+   * Implementations that can tell a missing property from a null value in one step should override this.
+   */
+  public Object lookup(int type, String key) throws PropertyException {
+    Object value = get(type, key);
+
+    if((value == null) && !exists(key)) {
+      return NOT_FOUND;
+    }
+
+    return value;
+  }
+
   /**
    * Returns true.
    */
@@ -369,9 +433,117 @@ public abstract class AbstractPropertySet implements PropertySet {
     return 0;
   }
 
+  /**
+   * Smallest string greater than every string starting with the specified prefix, or null if there is none,
+   * so that a prefix can be matched with a <code>key &gt;= prefix AND key &lt; end</code> range.
+   * In a database, that only holds if the key column is compared in UTF-16 code unit order, that is with a binary collation.
+   */
+  protected static String prefixEnd(String prefix) {
+    int i = prefix.length() - 1;
+
+    while((i >= 0) && (prefix.charAt(i) == Character.MAX_VALUE)) {
+      i--;
+    }
+
+    if(i < 0) {
+      return null;
+    }
+
+    return prefix.substring(0, i) + (char)(prefix.charAt(i) + 1);
+  }
+
+  private List<String> sortedKeys(String prefix, int type) throws PropertyException {
+    List<String> keys = new ArrayList<String>(getKeys(prefix, type));
+    Collections.sort(keys);
+
+    return keys;
+  }
+
   private void set(int type, String key, Object value) throws PropertyException {
 
     //we're ok this far, so call the actual setter.
     setImpl(type, key, value);
   }
+
+  //~ Inner Classes //////////////////////////////////////////////////////////
+
+  /**
+   * Cursor over keys fetched one page at a time, continuing after the last key of the previous page.
+   */
+  protected static class PagedCursor implements Cursor {
+    private final KeyListing listing;
+    private final String prefix;
+    private final int type;
+    private final int pageSize;
+    private Iterator<String> page = Collections.<String>emptyList().iterator();
+    private String last;
+    private boolean exhausted;
+
+    public PagedCursor(KeyListing listing, String prefix, int type, int pageSize) {
+      if(pageSize <= 0) {
+        throw new IllegalArgumentException("page size must be positive");
+      }
+
+      this.listing = listing;
+      this.prefix = prefix;
+      this.type = type;
+      this.pageSize = pageSize;
+    }
+
+    public boolean hasNext() {
+      if(!page.hasNext() && !exhausted) {
+        List<String> keys = listing.getKeys(prefix, type, last, pageSize);
+        exhausted = keys.size() < pageSize;
+        page = keys.iterator();
+      }
+
+      return page.hasNext();
+    }
+
+    public String next() {
+      if(!hasNext()) {
+        throw new NoSuchElementException();
+      }
+
+      last = page.next();
+
+      return last;
+    }
+
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+    public void close() {
+      exhausted = true;
+      page = Collections.<String>emptyList().iterator();
+    }
+  }
+
+  /**
+   * Cursor over a list of keys that is already in memory.
+   */
+  private static final class SnapshotCursor implements Cursor {
+    private Iterator<String> keys;
+
+    SnapshotCursor(List<String> keys) {
+      this.keys = keys.iterator();
+    }
+
+    public boolean hasNext() {
+      return keys.hasNext();
+    }
+
+    public String next() {
+      return keys.next();
+    }
+
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+    public void close() {
+      keys = Collections.<String>emptyList().iterator();
+    }
+  }
 }
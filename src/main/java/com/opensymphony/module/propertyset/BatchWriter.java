@@ -0,0 +1,35 @@
+/*
+ * Copyright (c) 2002-2003 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.module.propertyset;
+
+/**
+ * Implemented by propertysets that can group many writes into a single unit of work,
+ * such as a single transaction with batched statements for database backed sets.
+ * {@link PropertySetCloner} uses this when copying into such a set.
+ * <p/>
+ * <p>Every {@link #beginBatch()} must be followed by either {@link #endBatch()} or
+ * {@link #abortBatch()}. Writes made in between may not be visible to other
+ * propertysets until the batch ends.</p>
+ */
+public interface BatchWriter {
+  //~ Methods ////////////////////////////////////////////////////////////////
+
+  /**
+   * Start grouping writes.
+   *
+   * @throws IllegalStateException if a batch is already in progress.
+   */
+  void beginBatch() throws PropertyException;
+
+  /**
+   * Write out everything since {@link #beginBatch()}.
+   */
+  void endBatch() throws PropertyException;
+
+  /**
+   * Discard the writes of the current batch, as far as the implementation is able to.
+   */
+  void abortBatch() throws PropertyException;
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright (c) 2002-2003 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.module.propertyset;
+
+/**
+ * Single pass over the properties of a set together with their types and values, for callers
+ * that need all of them (such as a cache warming up) and would otherwise look each key up on its own.
+ * <p/>
+ * <p>All propertysets extending {@link AbstractPropertySet} implement this, by default with a typed get
+ * per key; database backed implementations override it to read everything with one query.</p>
+ */
+public interface EntryListing {
+  //~ Methods ////////////////////////////////////////////////////////////////
+
+  /**
+   * Hand every property to the visitor, in no particular order.
+   *
+   * @param prefix String prefix keys must start with, or null for all keys.
+   */
+  void visitEntries(String prefix, Visitor visitor) throws PropertyException;
+
+  //~ Inner Interfaces ///////////////////////////////////////////////////////
+
+  interface Visitor {
+    /**
+     * @return false to end the pass early.
+     */
+    boolean visit(String key, int type, Object value);
+  }
+}
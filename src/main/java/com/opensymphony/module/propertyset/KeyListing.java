@@ -0,0 +1,44 @@
+/*
+ * Copyright (c) 2002-2003 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.module.propertyset;
+
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Key listing in bounded pieces, for propertysets with too many keys to materialize
+ * with {@link PropertySet#getKeys(String, int)}. Keys are returned in ascending order.
+ * <p/>
+ * <p>All propertysets extending {@link AbstractPropertySet} implement this, by default on top
+ * of the full key listing; database backed implementations override it to page in the database.</p>
+ */
+public interface KeyListing {
+  //~ Methods ////////////////////////////////////////////////////////////////
+
+  /**
+   * Retrieve the next page of keys.
+   *
+   * @param prefix String prefix keys must start with, or null for all keys.
+   * @param type Type of the properties to list, or 0 for all types.
+   * @param after Last key of the previous page, or null for the first page. Only keys after it are returned.
+   * @param limit Maximum number of keys to return.
+   */
+  List<String> getKeys(String prefix, int type, String after, int limit) throws PropertyException;
+
+  /**
+   * Iterate over all matching keys, holding at most about <code>fetchSize</code> of them in memory at a time.
+   * The cursor closes itself once exhausted, and must be closed by the caller if abandoned early.
+   */
+  Cursor iterateKeys(String prefix, int type, int fetchSize) throws PropertyException;
+
+  //~ Inner Interfaces ///////////////////////////////////////////////////////
+
+  interface Cursor extends Iterator<String> {
+    /**
+     * Release whatever the cursor holds on to, such as an open result set.
+     */
+    void close();
+  }
+}
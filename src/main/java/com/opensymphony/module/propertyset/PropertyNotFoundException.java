@@ -0,0 +1,31 @@
+/*
+ * Copyright (c) 2002-2003 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.module.propertyset;
+
+/**
+ * Thrown by implementations that cannot report a missing property through
+ * a return value, such as {@link PropertySet#getType(String)}.
+ * <p/>
+ * <p>Since a missing property is an expected condition (and aggregating
+ * propertysets routinely trigger it), this exception does not capture a
+ * stack trace.</p>
+ */
+public class PropertyNotFoundException extends PropertyException {
+  //~ Constructors ///////////////////////////////////////////////////////////
+
+  public PropertyNotFoundException() {
+    super();
+  }
+
+  public PropertyNotFoundException(String msg) {
+    super(msg);
+  }
+
+  //~ Methods ////////////////////////////////////////////////////////////////
+
+  public Throwable fillInStackTrace() {
+    return this;
+  }
+}
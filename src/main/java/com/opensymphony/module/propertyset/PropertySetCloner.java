@@ -28,6 +28,8 @@ import java.util.Iterator;
  * <p/>
  * <p>If the destination PropertySet contains any properties, they will be cleared before
  * the source properties are copied across.</p>
+ * <p/>
+ * <p>If the destination implements {@link BatchWriter}, all writes are made in a single batch.</p>
  *
  * @author <a href="mailto:joe@truemesh.com">Joe Walnes</a>
  * @version $Revision: 144 $
@@ -57,22 +59,42 @@ public class PropertySetCloner {
   }
 
   public void cloneProperties() throws PropertyException {
-    clearDestination();
-
-    Iterator keys = source.getKeys().iterator();
-
-    while(keys.hasNext()) {
-      String key = (String)keys.next();
-      cloneProperty(key);
-    }
+    copy(true);
   }
 
   public void copyProperties() throws PropertyException {
-    Iterator keys = source.getKeys().iterator();
+    copy(false);
+  }
 
-    while(keys.hasNext()) {
-      String key = (String)keys.next();
-      cloneProperty(key);
+  private void copy(boolean clear) throws PropertyException {
+    BatchWriter batch = (destination instanceof BatchWriter) ? (BatchWriter)destination : null;
+    boolean done = false;
+
+    if(batch != null) {
+      batch.beginBatch();
+    }
+
+    try {
+      if(clear) {
+        clearDestination();
+      }
+
+      Iterator keys = source.getKeys().iterator();
+
+      while(keys.hasNext()) {
+        String key = (String)keys.next();
+        cloneProperty(key);
+      }
+
+      done = true;
+    } finally {
+      if(batch != null) {
+        if(done) {
+          batch.endBatch();
+        } else {
+          batch.abortBatch();
+        }
+      }
     }
   }
 
@@ -7,6 +7,8 @@ package com.opensymphony.module.propertyset;
 import java.util.Map;
 
 import com.opensymphony.module.propertyset.config.PropertySetConfig;
+import com.opensymphony.module.propertyset.javabeans.BeanIntrospectorPropertySet;
+import com.opensymphony.module.propertyset.javabeans.PropertySetAdapters;
 
 /**
  * The PropertySetManager is a factory for all the different types of
@@ -25,7 +27,9 @@ public class PropertySetManager {
    * For example 'ejb', or 'memory'.
    * @param args The arguments to pass to the propertyset for initialization.
    * Consult the javadocs for a particular propertyset to see what arguments
-   * it requires and supports.
+   * it requires and supports. For {@link BeanIntrospectorPropertySet}, the subclass generated by
+   * {@link com.opensymphony.module.propertyset.javabeans.PropertySetBeanProcessor}
+   * is returned when the bean's class has one.
    */
   public static PropertySet getInstance(String name, Map<String, Object> args) {
     PropertySet ps = getInstance(name, args, PropertySetManager.class.getClassLoader());
@@ -54,7 +58,17 @@ public class PropertySetManager {
     }
 
     try {
-      PropertySet ps = (PropertySet)psClass.newInstance();
+      PropertySet ps = null;
+
+      //prefer the compile-time generated adapter over introspecting the bean
+      if((args != null) && (psClass == BeanIntrospectorPropertySet.class)) {
+        ps = PropertySetAdapters.create(args.get("bean"));
+      }
+
+      if(ps == null) {
+        ps = (PropertySet)psClass.newInstance();
+      }
+
       ps.init(config, args);
 
       return ps;
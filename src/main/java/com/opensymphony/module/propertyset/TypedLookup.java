@@ -0,0 +1,39 @@
+/*
+ * Copyright (c) 2002-2003 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.module.propertyset;
+
+/**
+ * Typed lookup that also reports whether the property exists, so that callers
+ * which have to tell a stored <code>false</code>, <code>0</code> or <code>null</code>
+ * apart from a missing property (such as
+ * {@link com.opensymphony.module.propertyset.aggregate.AggregatePropertySet})
+ * can do so with a single call.
+ * <p/>
+ * <p>All propertysets extending {@link AbstractPropertySet} implement this;
+ * implementations that can answer in one probe of their storage override
+ * {@link AbstractPropertySet#lookup(int, String)}.</p>
+ */
+public interface TypedLookup {
+  //~ Instance fields ////////////////////////////////////////////////////////
+
+  /**
+   * Returned by {@link #lookup(int, String)} when the property does not exist.
+   */
+  Object NOT_FOUND = new Object() {
+    public String toString() {
+      return "NOT_FOUND";
+    }
+  };
+
+  //~ Methods ////////////////////////////////////////////////////////////////
+
+  /**
+   * Retrieve a property of the given type.
+   *
+   * @return The value (which may be null if a null was stored), or {@link #NOT_FOUND}.
+   * @throws InvalidPropertyTypeException if the property exists with a different type.
+   */
+  Object lookup(int type, String key) throws PropertyException;
+}
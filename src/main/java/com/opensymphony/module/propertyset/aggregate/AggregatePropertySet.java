@@ -4,12 +4,18 @@
  */
 package com.opensymphony.module.propertyset.aggregate;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.util.*;
+import java.util.concurrent.*;
 
 import com.opensymphony.module.propertyset.AbstractPropertySet;
 import com.opensymphony.module.propertyset.PropertyException;
+import com.opensymphony.module.propertyset.PropertyImplementationException;
+import com.opensymphony.module.propertyset.PropertyNotFoundException;
 import com.opensymphony.module.propertyset.PropertySet;
+import com.opensymphony.module.propertyset.TypedLookup;
 
 /**
  * PropertySet composed of a collection of other propertysets.
@@ -21,8 +27,29 @@ import com.opensymphony.module.propertyset.PropertySet;
  * <b>Optional Args</b>
  * <ul>
  * <li><b>PropertySets</b> - a List of PropertySet</li>
+ * <li><b>routing</b> - Boolean that, when true, remembers which propertyset answered for
+ * each key (or that none did), so that repeat lookups go straight to the owner.
+ * Only use this when the propertysets are not modified other than through this aggregate.</li>
+ * <li><b>routingCapacity</b> - Integer maximum number of remembered keys, defaults to 10000</li>
+ * <li><b>parallelKeys</b> - Boolean that, when true, queries the propertysets concurrently in
+ * <code>getKeys</code>, using a bounded pool shared by all aggregates</li>
+ * <li><b>hedgeDelay</b> - Long number of milliseconds after which a lookup that has not been
+ * resolved is also sent to the next propertyset, 0 to ask all of them at once. The highest
+ * priority hit is still the one returned. Unset by default, meaning lookups are sequential.</li>
+ * <li><b>failureThreshold</b> - Integer number of consecutive failures after which a propertyset
+ * is skipped by lookups and key listings. A failure is any exception other than an ordinary
+ * PropertyException (such as a missing key), including PropertyImplementationException.
+ * Unset by default, meaning no health tracking.</li>
+ * <li><b>openInterval</b> - Long number of milliseconds a failing propertyset is skipped for before
+ * a single probe is let through, defaults to 30000</li>
+ * <li><b>executor</b> - the ExecutorService to run concurrent queries on instead of the shared pool</li>
+ * <li><b>keysTimeout</b> - Long number of milliseconds to wait for the propertysets when listing keys
+ * concurrently, defaults to 0 (wait indefinitely)</li>
  * </ul>
  * <p/>
+ * A deserialized aggregate keeps its configuration, but starts with all circuits closed,
+ * and runs concurrent queries on the shared pool since executors are not serialized.
+ * <p/>
  * Date: Dec 16, 2001
  * Time: 11:28:06 PM
  *
@@ -30,25 +57,114 @@ import com.opensymphony.module.propertyset.PropertySet;
  */
 public class AggregatePropertySet extends AbstractPropertySet implements Serializable {
 
+  private static final int NO_OWNER = -1;
+  private static final Object UNAVAILABLE = new Object();
+  //a set answered with an exception rather than a value or a miss, usually a type mismatch
+  private static final Object WRONG_TYPE = new Object();
+
   private List<PropertySet> propertySets;
+  private ConcurrentHashMap<String, Integer> routes;
+  private int routingCapacity = 10000;
+  private transient ExecutorService executor;
+  //whether queries run concurrently, so that a deserialized aggregate can restore an executor
+  private boolean concurrent;
+  private long keysTimeout;
+  private long hedgeDelay = -1;
+  private transient Map<PropertySet, Health> health;
+  private int failureThreshold;
+  private long openInterval = 30000;
 
   //~ Methods ////////////////////////////////////////////////////////////////
 
-  public Collection<String> getKeys(String prefix, int type) throws PropertyException {
-    Iterator i = propertySets.iterator();
-    Collection<String> keys = new ArrayList<String>();
+  /**
+   * Lists the keys of all the propertysets, sorted and without duplicates.
+   * When parallel listing is enabled, the propertysets are queried concurrently and any
+   * set that does not answer within <code>keysTimeout</code> is left out of the result.
+   */
+  public Collection<String> getKeys(final String prefix, final int type) throws PropertyException {
+    List<List<String>> results = new ArrayList<List<String>>(propertySets.size());
+
+    if((executor == null) || (propertySets.size() < 2)) {
+      for(PropertySet set : propertySets) {
+        if(available(set)) {
+          try {
+            results.add(sorted(set.getKeys(prefix, type)));
+            succeeded(set);
+          } catch(RuntimeException ex) {
+            failed(set, ex);
+          }
+        }
+      }
+    } else {
+      List<Future<List<String>>> futures = new ArrayList<Future<List<String>>>(propertySets.size());
 
-    while(i.hasNext()) {
-      PropertySet set = (PropertySet)i.next();
+      for(final PropertySet set : propertySets) {
+        if(!available(set)) {
+          futures.add(null);
 
-      try {
-        keys.addAll(set.getKeys(prefix, type));
-      } catch(PropertyException ex) {
-        //we don't really care about these here
+          continue;
+        }
+
+        //the outcome is recorded by the task itself, as nobody may be waiting for it by the time it finishes
+        futures.add(executor.submit(new Callable<List<String>>() {
+          public List<String> call() {
+            try {
+              List<String> keys = sorted(set.getKeys(prefix, type));
+              succeeded(set);
+
+              return keys;
+            } catch(RuntimeException ex) {
+              failed(set, ex);
+
+              return null;
+            } catch(Error e) {
+              if(health != null) {
+                health(set).failure(failureThreshold);
+              }
+
+              throw e;
+            }
+          }
+        }));
+      }
+
+      long deadline = System.currentTimeMillis() + keysTimeout;
+
+      for(int i = 0; i < futures.size(); i++) {
+        Future<List<String>> future = futures.get(i);
+
+        if(future == null) {
+          continue;
+        }
+
+        try {
+          List<String> keys = (keysTimeout > 0) ? future.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS) : future.get();
+
+          //null if the set failed, or did not have an answer
+          if(keys != null) {
+            results.add(keys);
+          }
+        } catch(TimeoutException ex) {
+          //too slow, list without it
+          future.cancel(true);
+          failed(propertySets.get(i), new PropertyImplementationException("Timed out listing keys", ex));
+        } catch(ExecutionException ex) {
+          Throwable cause = ex.getCause();
+
+          //already recorded by the task, which only throws what failed() would rethrow
+          if(cause instanceof RuntimeException) {
+            throw (RuntimeException)cause;
+          }
+
+          throw new PropertyImplementationException("Cannot list keys", cause);
+        } catch(InterruptedException ex) {
+          Thread.currentThread().interrupt();
+          throw new PropertyImplementationException("Interrupted while listing keys", ex);
+        }
       }
     }
 
-    return keys;
+    return merge(results);
   }
 
   public boolean isSettable(String property) {
@@ -70,33 +186,115 @@ public class AggregatePropertySet extends AbstractPropertySet implements Seriali
    * they would not be checked.
    */
   public int getType(String key) throws PropertyException {
+    Integer owner = route(key);
+
+    if((owner != null) && (owner != NO_OWNER)) {
+      PropertySet set = propertySets.get(owner);
+
+      if(available(set)) {
+        try {
+          int type = set.getType(key);
+          succeeded(set);
+
+          if(type > 0) {
+            return type;
+          }
+        } catch(RuntimeException ex) {
+          //stale route, or the set is failing
+          failed(set, ex);
+        }
+      }
+
+      unroute(key);
+    }
+
+    for(int i = 0; i < propertySets.size(); i++) {
+      PropertySet set = propertySets.get(i);
+
+      if(!available(set)) {
+        continue;
+      }
 
-    for(PropertySet set : propertySets) {
       try {
-        return set.getType(key);
-      } catch(PropertyException ex) {
-        //we don't really care about these
+        int type = set.getType(key);
+        succeeded(set);
+
+        if(type > 0) {
+          route(key, i);
+        }
+
+        return type;
+      } catch(RuntimeException ex) {
+        failed(set, ex);
       }
     }
 
-    throw new PropertyException("No key " + key + " found");
+    throw new PropertyNotFoundException("No key " + key + " found");
   }
 
   public void addPropertySet(PropertySet propertySet) {
     propertySets.add(propertySet);
+
+    //keys nobody had might be in the new set
+    clearRoutes();
   }
 
   public boolean exists(String key) throws PropertyException {
+    Integer owner = route(key);
+
+    if(owner != null) {
+      if(owner == NO_OWNER) {
+        return false;
+      }
+
+      PropertySet set = propertySets.get(owner);
+
+      if(available(set)) {
+        try {
+          boolean exists = set.exists(key);
+          succeeded(set);
+
+          if(exists) {
+            return true;
+          }
+        } catch(RuntimeException ex) {
+          //stale route, or the set is failing
+          failed(set, ex);
+        }
+      }
+
+      unroute(key);
+    }
+
+    boolean complete = true;
+
+    for(int i = 0; i < propertySets.size(); i++) {
+      PropertySet set = propertySets.get(i);
+
+      if(!available(set)) {
+        complete = false;
+
+        continue;
+      }
 
-    for(PropertySet set : propertySets) {
       try {
-        if(set.exists(key)) {
+        boolean exists = set.exists(key);
+        succeeded(set);
+
+        if(exists) {
+          route(key, i);
+
           return true;
         }
-      } catch(PropertyException ex) {
+      } catch(RuntimeException ex) {
+        complete &= failed(set, ex);
       }
     }
 
+    if(complete) {
+      route(key, NO_OWNER);
+    }
+
     return false;
   }
 
@@ -107,9 +305,55 @@ public class AggregatePropertySet extends AbstractPropertySet implements Seriali
     if(propertySets == null) {
       propertySets = new ArrayList<PropertySet>();
     }
+
+    executor = (ExecutorService)args.get("executor");
+
+    Number delay = (Number)args.get("hedgeDelay");
+
+    if(delay != null) {
+      hedgeDelay = delay.longValue();
+    }
+
+    if((executor == null) && (Boolean.TRUE.equals(args.get("parallelKeys")) || (hedgeDelay >= 0))) {
+      executor = SharedPool.INSTANCE;
+    }
+
+    concurrent = executor != null;
+
+    Number timeout = (Number)args.get("keysTimeout");
+
+    if(timeout != null) {
+      keysTimeout = timeout.longValue();
+    }
+
+    Integer threshold = (Integer)args.get("failureThreshold");
+
+    if(threshold != null) {
+      //a threshold of 0 behaves as 1, keep it positive so that readObject can tell tracking is on
+      failureThreshold = Math.max(1, threshold);
+      health = new IdentityHashMap<PropertySet, Health>();
+
+      Number interval = (Number)args.get("openInterval");
+
+      if(interval != null) {
+        openInterval = interval.longValue();
+      }
+    }
+
+    if(Boolean.TRUE.equals(args.get("routing"))) {
+      routes = new ConcurrentHashMap<String, Integer>();
+
+      Integer capacity = (Integer)args.get("routingCapacity");
+
+      if(capacity != null) {
+        routingCapacity = capacity;
+      }
+    }
   }
 
   public void remove() throws PropertyException {
+    clearRoutes();
+
     if(propertySets != null) {
 
       for(Object propertySet : propertySets) {
@@ -120,6 +364,7 @@ public class AggregatePropertySet extends AbstractPropertySet implements Seriali
   }
 
   public void remove(String key) throws PropertyException {
+    unroute(key);
 
     for(PropertySet set : propertySets) {
       try {
@@ -136,158 +381,593 @@ public class AggregatePropertySet extends AbstractPropertySet implements Seriali
    * rather than setting the same property on all the propertysets.
    */
   protected void setImpl(int type, String key, Object value) throws PropertyException {
+    try {
+      for(PropertySet set : propertySets) {
+        try {
+          if(set.isSettable(key)) {
+            switch(type) {
+              case BOOLEAN:
+                set.setBoolean(key, (Boolean)value);
 
-    for(PropertySet set : propertySets) {
-      try {
-        if(set.isSettable(key)) {
-          switch(type) {
-            case BOOLEAN:
-              set.setBoolean(key, (Boolean)value);
-
-              return;
+                return;
 
-            case INT:
-              set.setInt(key, ((Number)value).intValue());
+              case INT:
+                set.setInt(key, ((Number)value).intValue());
 
-              return;
+                return;
 
-            case LONG:
-              set.setLong(key, ((Number)value).longValue());
+              case LONG:
+                set.setLong(key, ((Number)value).longValue());
 
-              return;
+                return;
 
-            case DOUBLE:
-              set.setDouble(key, ((Number)value).doubleValue());
+              case DOUBLE:
+                set.setDouble(key, ((Number)value).doubleValue());
 
-              return;
+                return;
 
-            case STRING:
-              set.setString(key, (String)value);
+              case STRING:
+                set.setString(key, (String)value);
 
-              return;
+                return;
 
-            case TEXT:
-              set.setText(key, (String)value);
+              case TEXT:
+                set.setText(key, (String)value);
 
-              return;
+                return;
 
-            case DATE:
-              set.setDate(key, (Date)value);
+              case DATE:
+                set.setDate(key, (Date)value);
 
-              return;
+                return;
 
-            case OBJECT:
-              set.setObject(key, value);
+              case OBJECT:
+                set.setObject(key, value);
 
-              return;
+                return;
 
+            }
           }
+        } catch(PropertyException ex) {
+          //we don't care about these here, sadly
         }
-      } catch(PropertyException ex) {
-        //we don't care about these here, sadly
       }
+    } finally {
+      //the key may now be answered by a different set
+      unroute(key);
     }
   }
 
   protected Object get(int type, String key) throws PropertyException {
+    Object value = lookup(type, key);
 
-    for(PropertySet set : propertySets) {
-      try {
-        //poo, since set.get() is protected, we have to double back
-        //on ourselves and call getXXX(), which in turn will call get
-        switch(type) {
-          case BOOLEAN:
+    return (value == NOT_FOUND) ? null : value;
+  }
 
-            boolean bool = set.getBoolean(key);
+  /**
+   * Asks each propertyset in turn, stopping at the first that has the key
+   * (even if the value stored there is false, zero or null).
+   */
+  public Object lookup(int type, String key) throws PropertyException {
+    Integer owner = route(key);
 
-            if(bool) {
-              return Boolean.TRUE;
-            }
+    if(owner != null) {
+      if(owner == NO_OWNER) {
+        return NOT_FOUND;
+      }
 
-            //If we have false, we need to check if it's missing
-            //property or if it's actually false
-            if(set.exists(key)) {
-              return Boolean.FALSE;
-            }
+      Object value = probe(propertySets.get(owner), type, key);
 
-            break;
+      if((value != NOT_FOUND) && (value != UNAVAILABLE) && (value != WRONG_TYPE)) {
+        return value;
+      }
 
-          case INT:
+      //stale route, fall back to asking everyone
+      routes.remove(key);
+    }
 
-            int maybeInt = set.getInt(key);
+    if((hedgeDelay >= 0) && (executor != null) && (propertySets.size() > 1)) {
+      return hedgedGet(type, key);
+    }
 
-            if(maybeInt != 0) {
-              return maybeInt;
-            }
+    boolean complete = true;
+    boolean mismatch = false;
 
-            break;
+    for(int i = 0; i < propertySets.size(); i++) {
+      Object value = probe(propertySets.get(i), type, key);
 
-          case LONG:
+      if(value == UNAVAILABLE) {
+        complete = false;
+      } else if(value == WRONG_TYPE) {
+        mismatch = true;
+      } else if(value != NOT_FOUND) {
+        route(key, i);
 
-            long maybeLong = set.getLong(key);
+        return value;
+      }
+    }
 
-            if(maybeLong != 0) {
-              return maybeLong;
-            }
+    if(complete) {
+      missed(key, mismatch);
+    }
 
-            break;
+    return NOT_FOUND;
+  }
 
-          case DOUBLE:
+  /**
+   * Asks the propertysets concurrently, starting the next lower-priority lookup whenever
+   * <code>hedgeDelay</code> passes without the outstanding ones resolving the key. A hit
+   * is only returned once every higher-priority set has missed. Lookups in lower-priority
+   * sets that have not started by then are cancelled, and running ones are left to finish.
+   */
+  private Object hedgedGet(final int type, final String key) throws PropertyException {
+    int count = propertySets.size();
+    List<Future<Object>> futures = new ArrayList<Future<Object>>(count);
+    CompletionService<Object> completion = new ExecutorCompletionService<Object>(executor);
+    int next = 0;
+    boolean complete = true;
+    boolean mismatch = false;
+
+    try {
+      while(true) {
+        //resolve in priority order as far as the finished lookups allow
+        while((next < futures.size()) && futures.get(next).isDone()) {
+          Object value = result(futures.get(next));
+
+          if(value == UNAVAILABLE) {
+            complete = false;
+          } else if(value == WRONG_TYPE) {
+            mismatch = true;
+          } else if(value != NOT_FOUND) {
+            route(key, next);
+
+            return value;
+          }
 
-            double maybeDouble = set.getDouble(key);
+          next++;
+        }
 
-            if(maybeDouble != 0) {
-              return maybeDouble;
-            }
+        if(next == count) {
+          if(complete) {
+            missed(key, mismatch);
+          }
 
-            break;
+          return NOT_FOUND;
+        }
 
-          case STRING:
+        if(futures.size() == next) {
+          //everything launched so far has missed, no point waiting
+          futures.add(submit(completion, futures.size(), type, key));
+        } else if(futures.size() < count) {
+          if((hedgeDelay == 0) || (completion.poll(hedgeDelay, TimeUnit.MILLISECONDS) == null)) {
+            futures.add(submit(completion, futures.size(), type, key));
+          }
+        } else {
+          completion.take();
+        }
+      }
+    } catch(InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new PropertyImplementationException("Interrupted while looking up " + key, ex);
+    } finally {
+      //no interrupts: a probe torn down mid-call would count as a failure of a healthy set
+      for(int i = next + 1; i < futures.size(); i++) {
+        futures.get(i).cancel(false);
+      }
+    }
+  }
 
-            String string = set.getString(key);
+  private Future<Object> submit(CompletionService<Object> completion, int index, final int type, final String key) {
+    final PropertySet set = propertySets.get(index);
 
-            if(string != null) {
-              return string;
-            }
+    return completion.submit(new Callable<Object>() {
+      public Object call() throws Exception {
+        return probe(set, type, key);
+      }
+    });
+  }
 
-            break;
+  /**
+   * @return The result of a finished {@link #probe(PropertySet, int, String)}.
+   */
+  private static Object result(Future<Object> future) throws InterruptedException {
+    try {
+      return future.get();
+    } catch(ExecutionException ex) {
+      Throwable cause = ex.getCause();
+
+      if(cause instanceof RuntimeException) {
+        throw (RuntimeException)cause;
+      }
 
-          case TEXT:
+      throw new PropertyImplementationException(cause);
+    }
+  }
 
-            String text = set.getText(key);
+  /**
+   * Look a key up in a single propertyset, keeping track of its health.
+   *
+   * @return The value, {@link #NOT_FOUND} if the set does not have it, {@link #WRONG_TYPE}
+   * if it answered with an exception (such as a type mismatch), or {@link #UNAVAILABLE}
+   * if the set could not be asked.
+   */
+  private Object probe(PropertySet set, int type, String key) {
+    if(!available(set)) {
+      return UNAVAILABLE;
+    }
 
-            if(text != null) {
-              return text;
-            }
+    try {
+      Object value = get(set, type, key);
+      succeeded(set);
 
-            break;
+      return value;
+    } catch(RuntimeException ex) {
+      return failed(set, ex) ? WRONG_TYPE : UNAVAILABLE;
+    }
+  }
 
-          case DATE:
+  /**
+   * Whether a set may be asked, which is always the case unless its circuit is open.
+   */
+  private boolean available(PropertySet set) {
+    return (health == null) || health(set).allow(openInterval);
+  }
 
-            Date date = set.getDate(key);
+  private void succeeded(PropertySet set) {
+    if(health != null) {
+      health(set).success();
+    }
+  }
 
-            if(date != null) {
-              return date;
-            }
+  /**
+   * Handle an exception thrown by a set. Ordinary PropertyExceptions are answers
+   * (such as a missing key or a type mismatch) and are swallowed. Anything else is a
+   * failure, which counts towards opening the set's circuit when health tracking is
+   * on, and is rethrown otherwise (unless it is a PropertyException).
+   *
+   * @return true if the exception was an answer, false if it was a failure.
+   */
+  private boolean failed(PropertySet set, RuntimeException ex) {
+    if((ex instanceof PropertyException) && !(ex instanceof PropertyImplementationException)) {
+      succeeded(set);
 
-            break;
+      return true;
+    }
 
-          case OBJECT:
+    if(health != null) {
+      health(set).failure(failureThreshold);
+    } else if(!(ex instanceof PropertyException)) {
+      throw ex;
+    }
 
-            Object obj = set.getObject(key);
+    return false;
+  }
 
-            if(obj != null) {
-              return obj;
-            }
+  private Health health(PropertySet set) {
+    synchronized(health) {
+      Health h = health.get(set);
 
-            break;
+      if(h == null) {
+        h = new Health();
+        health.put(set, h);
+      }
 
+      return h;
+    }
+  }
+
+  /**
+   * Look a key up in a single propertyset. Sets implementing {@link TypedLookup}
+   * answer in one call; for others, a false, zero or null value is followed by
+   * an <code>exists</code> check to tell it apart from a missing key.
+   *
+   * @return The value, or {@link #NOT_FOUND} if the set does not have the key.
+   */
+  private static Object get(PropertySet set, int type, String key) throws PropertyException {
+    if(set instanceof TypedLookup) {
+      return ((TypedLookup)set).lookup(type, key);
+    }
+
+    //poo, since set.get() is protected, we have to double back
+    //on ourselves and call getXXX(), which in turn will call get
+    Object value;
+
+    switch(type) {
+      case BOOLEAN:
+
+        boolean bool = set.getBoolean(key);
+
+        if(bool) {
+          return Boolean.TRUE;
         }
-      } catch(PropertyException ex) {
-        //we don't really care about these here
+
+        value = Boolean.FALSE;
+
+        break;
+
+      case INT:
+
+        int maybeInt = set.getInt(key);
+
+        if(maybeInt != 0) {
+          return maybeInt;
+        }
+
+        value = maybeInt;
+
+        break;
+
+      case LONG:
+
+        long maybeLong = set.getLong(key);
+
+        if(maybeLong != 0) {
+          return maybeLong;
+        }
+
+        value = maybeLong;
+
+        break;
+
+      case DOUBLE:
+
+        double maybeDouble = set.getDouble(key);
+
+        if(maybeDouble != 0) {
+          return maybeDouble;
+        }
+
+        value = maybeDouble;
+
+        break;
+
+      case STRING:
+        value = set.getString(key);
+
+        break;
+
+      case TEXT:
+        value = set.getText(key);
+
+        break;
+
+      case DATE:
+        value = set.getDate(key);
+
+        break;
+
+      case OBJECT:
+        value = set.getObject(key);
+
+        break;
+
+      default:
+        return NOT_FOUND;
+    }
+
+    if(value != null) {
+      return value;
+    }
+
+    //we need to check if it's a missing property or an actual false, zero or null
+    return set.exists(key) ? value : NOT_FOUND;
+  }
+
+  /**
+   * @return The index of the propertyset known to own the key, {@link #NO_OWNER}
+   * if no propertyset has it, or null if the key has not been routed (or routing is off).
+   */
+  private Integer route(String key) {
+    return (routes == null) ? null : routes.get(key);
+  }
+
+  private void route(String key, int owner) {
+    if(routes != null) {
+      if(routes.size() >= routingCapacity) {
+        routes.clear();
       }
+
+      routes.put(key, owner);
+    }
+  }
+
+  /**
+   * Route a key that every set missed in a typed lookup. If every set reported the key
+   * missing, nobody has it. If some set answered with a type mismatch instead, it may own
+   * the key under another type, so <code>exists</code> decides which set owns it.
+   */
+  private void missed(String key, boolean mismatch) {
+    if(mismatch) {
+      if(routes != null) {
+        exists(key);
+      }
+    } else {
+      route(key, NO_OWNER);
+    }
+  }
+
+  private void unroute(String key) {
+    if(routes != null) {
+      routes.remove(key);
+    }
+  }
+
+  private void clearRoutes() {
+    if(routes != null) {
+      routes.clear();
+    }
+  }
+
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+
+    if(concurrent) {
+      executor = SharedPool.INSTANCE;
     }
 
-    return null;
+    if(failureThreshold > 0) {
+      health = new IdentityHashMap<PropertySet, Health>();
+    }
+  }
+
+  /**
+   * @return The keys as a sorted list, copying them only if they are not sorted already.
+   */
+  private static List<String> sorted(Collection<String> keys) {
+    List<String> list = (keys instanceof List) ? (List<String>)keys : new ArrayList<String>(keys);
+    String previous = null;
+
+    for(String key : list) {
+      if((previous != null) && (previous.compareTo(key) > 0)) {
+        list = new ArrayList<String>(list);
+        Collections.sort(list);
+
+        break;
+      }
+
+      previous = key;
+    }
+
+    return list;
+  }
+
+  /**
+   * k-way merge of sorted key lists, dropping duplicates.
+   * Lists are given in priority order, and ties go to the earlier list.
+   */
+  private static List<String> merge(List<List<String>> lists) {
+    if(lists.size() == 1) {
+      List<String> only = lists.get(0);
+      List<String> result = new ArrayList<String>(only.size());
+
+      for(String key : only) {
+        if(result.isEmpty() || !result.get(result.size() - 1).equals(key)) {
+          result.add(key);
+        }
+      }
+
+      return result;
+    }
+
+    PriorityQueue<Cursor> queue = new PriorityQueue<Cursor>(Math.max(1, lists.size()));
+    int size = 0;
+
+    for(int i = 0; i < lists.size(); i++) {
+      List<String> list = lists.get(i);
+      size += list.size();
+
+      if(!list.isEmpty()) {
+        queue.add(new Cursor(list, i));
+      }
+    }
+
+    List<String> result = new ArrayList<String>(size);
+    String last = null;
+
+    while(!queue.isEmpty()) {
+      Cursor cursor = queue.poll();
+      String key = cursor.current();
+
+      if(!key.equals(last)) {
+        result.add(key);
+        last = key;
+      }
+
+      if(cursor.advance()) {
+        queue.add(cursor);
+      }
+    }
+
+    return result;
+  }
+
+  //~ Inner Classes //////////////////////////////////////////////////////////
+
+  private static final class Cursor implements Comparable<Cursor> {
+    private final Iterator<String> keys;
+    private final int priority;
+    private String current;
+
+    Cursor(List<String> keys, int priority) {
+      this.keys = keys.iterator();
+      this.priority = priority;
+      this.current = this.keys.next();
+    }
+
+    String current() {
+      return current;
+    }
+
+    boolean advance() {
+      if(keys.hasNext()) {
+        current = keys.next();
+
+        return true;
+      }
+
+      return false;
+    }
+
+    public int compareTo(Cursor o) {
+      int result = current.compareTo(o.current);
+
+      return (result != 0) ? result : (priority - o.priority);
+    }
+  }
+
+  /**
+   * Circuit breaker state of one propertyset. The circuit opens after a number of
+   * consecutive failures; once the open interval has passed a single probe is let
+   * through (half-open), which closes the circuit again if it succeeds.
+   */
+  private static final class Health {
+    private int failures;
+    private boolean open;
+    private boolean probing;
+    private long openedAt;
+
+    synchronized boolean allow(long openInterval) {
+      if(!open) {
+        return true;
+      }
+
+      if(!probing && ((System.currentTimeMillis() - openedAt) >= openInterval)) {
+        probing = true;
+
+        return true;
+      }
+
+      return false;
+    }
+
+    synchronized void success() {
+      failures = 0;
+      open = false;
+      probing = false;
+    }
+
+    synchronized void failure(int threshold) {
+      failures++;
+
+      if(probing || (failures >= threshold)) {
+        open = true;
+        probing = false;
+        openedAt = System.currentTimeMillis();
+      }
+    }
+  }
+
+  /**
+   * Bounded pool of daemon threads shared by the aggregates that do not supply their own executor.
+   */
+  private static final class SharedPool {
+    static final ExecutorService INSTANCE = Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()), new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "propertyset-aggregate");
+        t.setDaemon(true);
+
+        return t;
+      }
+    });
   }
 }
@@ -0,0 +1,319 @@
+/*
+ * Copyright (c) 2002-2003 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.module.propertyset.cached;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.opensymphony.module.propertyset.EntryListing;
+import com.opensymphony.module.propertyset.PropertySet;
+
+/**
+ * Asynchronous warm-up of a {@link CachingPropertySet}.
+ * <p/>
+ * The entries of the decorated PropertySet are read in a single pass through
+ * {@link EntryListing} (one query for the database backed sets), and handed
+ * out in chunks that are copied into the cache in parallel. Sets that do not
+ * implement EntryListing are read with a type lookup and a typed get per key,
+ * still on the single thread doing the pass. An entry is not cached if its key
+ * has been written or removed locally, or invalidated by a peer, since the pass
+ * started, so a load in progress never overwrites newer values. Reads are served
+ * throughout; keys that have not been loaded yet simply fall through to the
+ * decorated PropertySet.
+ */
+public class BulkLoad {
+  //~ Instance fields ////////////////////////////////////////////////////////
+
+  private final CachingPropertySet cache;
+  private final int chunkSize;
+  private final BulkLoadListener listener;
+  private final Set<String> touched = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+  private final AtomicInteger loaded = new AtomicInteger();
+  private final AtomicInteger pendingChunks = new AtomicInteger();
+  private final CountDownLatch done = new CountDownLatch(1);
+  private volatile int total = -1;
+  private volatile boolean cancelled;
+  private volatile Throwable failure;
+
+  //~ Constructors ///////////////////////////////////////////////////////////
+
+  BulkLoad(CachingPropertySet cache, int chunkSize, BulkLoadListener listener) {
+    this.cache = cache;
+    this.chunkSize = chunkSize;
+    this.listener = listener;
+  }
+
+  //~ Methods ////////////////////////////////////////////////////////////////
+
+  /**
+   * @return Number of keys processed so far.
+   */
+  public int getLoaded() {
+    return loaded.get();
+  }
+
+  /**
+   * @return Total number of keys to load, or -1 while the pass over the decorated PropertySet is still running.
+   */
+  public int getTotal() {
+    return total;
+  }
+
+  public boolean isDone() {
+    return done.getCount() == 0;
+  }
+
+  /**
+   * @return The first error encountered while loading, or null.
+   */
+  public Throwable getFailure() {
+    return failure;
+  }
+
+  /**
+   * Wait for the load to finish.
+   *
+   * @return true if the load finished, false if the timeout elapsed first.
+   */
+  public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+    return done.await(timeout, unit);
+  }
+
+  void start(final Executor executor, final ExecutorService owned) {
+    try {
+      execute(executor, owned);
+    } catch(RuntimeException e) {
+      //rejected, the load is over before it started
+      failure = e;
+      total = 0;
+      finish(owned);
+    }
+  }
+
+  private void execute(final Executor executor, final ExecutorService owned) {
+    executor.execute(new Runnable() {
+      public void run() {
+        //the pass itself counts as pending until it is over
+        pendingChunks.set(1);
+
+        Chunker chunker = new Chunker(executor, owned, cache.generation.get());
+
+        try {
+          PropertySet source = cache.decoratedPS;
+
+          if(source instanceof EntryListing) {
+            ((EntryListing)source).visitEntries(null, chunker);
+          } else {
+            for(String key : source.getKeys()) {
+              int type = source.getType(key);
+
+              //type 0 means removed since the keys were listed
+              if((type != 0) && !chunker.visit(key, type, get(source, type, key))) {
+                break;
+              }
+            }
+          }
+
+          chunker.submit();
+        } catch(RuntimeException e) {
+          failure = e;
+        }
+
+        total = chunker.count;
+
+        if(pendingChunks.decrementAndGet() == 0) {
+          finish(owned);
+        }
+      }
+    });
+  }
+
+  /**
+   * Record that a key has been written or removed through the cache,
+   * so the loader leaves it alone.
+   */
+  void touch(String key) {
+    if(key == null) {
+      cancelled = true;
+    } else {
+      touched.add(key);
+    }
+  }
+
+  /**
+   * Copy a chunk of entries into the cache. Entries whose key was written locally or invalidated by a peer
+   * since the pass started are skipped, as the value read may already be stale.
+   */
+  private void fill(List<Entry> chunk, long generation) {
+    for(Entry entry : chunk) {
+      if(!cancelled && !touched.contains(entry.key)) {
+        try {
+          cache.fill(entry.type, entry.key, entry.value, generation);
+        } catch(RuntimeException e) {
+          if(failure == null) {
+            failure = e;
+          }
+        }
+      }
+
+      loaded.incrementAndGet();
+    }
+
+    if(listener != null) {
+      listener.progress(loaded.get(), total);
+    }
+  }
+
+  private void finish(ExecutorService owned) {
+    done.countDown();
+
+    if(owned != null) {
+      owned.shutdown();
+    }
+
+    if(listener != null) {
+      listener.completed(total, failure);
+    }
+  }
+
+  private static Object get(PropertySet ps, int type, String key) {
+    switch(type) {
+      case PropertySet.BOOLEAN:
+        return ps.getBoolean(key);
+
+      case PropertySet.INT:
+        return ps.getInt(key);
+
+      case PropertySet.LONG:
+        return ps.getLong(key);
+
+      case PropertySet.DOUBLE:
+        return ps.getDouble(key);
+
+      case PropertySet.STRING:
+        return ps.getString(key);
+
+      case PropertySet.TEXT:
+        return ps.getText(key);
+
+      case PropertySet.DATE:
+        return ps.getDate(key);
+
+      default:
+        return ps.getObject(key);
+    }
+  }
+
+  static void put(PropertySet ps, int type, String key, Object value) {
+    switch(type) {
+      case PropertySet.BOOLEAN:
+        ps.setBoolean(key, (Boolean)value);
+
+        break;
+
+      case PropertySet.INT:
+        ps.setInt(key, (Integer)value);
+
+        break;
+
+      case PropertySet.LONG:
+        ps.setLong(key, (Long)value);
+
+        break;
+
+      case PropertySet.DOUBLE:
+        ps.setDouble(key, (Double)value);
+
+        break;
+
+      case PropertySet.STRING:
+        ps.setString(key, (String)value);
+
+        break;
+
+      case PropertySet.TEXT:
+        ps.setText(key, (String)value);
+
+        break;
+
+      case PropertySet.DATE:
+        ps.setDate(key, (Date)value);
+
+        break;
+
+      default:
+        ps.setObject(key, value);
+    }
+  }
+
+  //~ Inner Classes //////////////////////////////////////////////////////////
+
+  private static final class Entry {
+    final String key;
+    final int type;
+    final Object value;
+
+    Entry(String key, int type, Object value) {
+      this.key = key;
+      this.type = type;
+      this.value = value;
+    }
+  }
+
+  /**
+   * Collects visited entries into chunks, and submits each full chunk to be copied into the cache.
+   */
+  private class Chunker implements EntryListing.Visitor {
+    private final Executor executor;
+    private final ExecutorService owned;
+    private final long generation;
+    private List<Entry> chunk = new ArrayList<Entry>();
+    int count;
+
+    Chunker(Executor executor, ExecutorService owned, long generation) {
+      this.executor = executor;
+      this.owned = owned;
+      this.generation = generation;
+    }
+
+    public boolean visit(String key, int type, Object value) {
+      chunk.add(new Entry(key, type, value));
+      count++;
+
+      if(chunk.size() >= chunkSize) {
+        submit();
+      }
+
+      return !cancelled;
+    }
+
+    void submit() {
+      if(chunk.isEmpty()) {
+        return;
+      }
+
+      final List<Entry> entries = chunk;
+      chunk = new ArrayList<Entry>();
+      pendingChunks.incrementAndGet();
+
+      try {
+        executor.execute(new Runnable() {
+          public void run() {
+            fill(entries, generation);
+
+            if(pendingChunks.decrementAndGet() == 0) {
+              finish(owned);
+            }
+          }
+        });
+      } catch(RuntimeException e) {
+        //rejected, so the chunk will never count down; the pass still holds its own count and fails with this
+        pendingChunks.decrementAndGet();
+        throw e;
+      }
+    }
+  }
+}
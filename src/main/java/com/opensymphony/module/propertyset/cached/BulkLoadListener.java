@@ -0,0 +1,26 @@
+/*
+ * Copyright (c) 2002-2003 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.module.propertyset.cached;
+
+/**
+ * Receives progress notifications from an asynchronous {@link BulkLoad}.
+ * Callbacks are made from the loading threads.
+ */
+public interface BulkLoadListener {
+  /**
+   * Called after each chunk of keys has been loaded.
+   *
+   * @param loaded Number of keys processed so far.
+   * @param total Total number of keys being loaded.
+   */
+  void progress(int loaded, int total);
+
+  /**
+   * Called once all keys have been processed.
+   *
+   * @param failure The first error encountered while loading, or null.
+   */
+  void completed(int total, Throwable failure);
+}
@@ -7,11 +7,15 @@ package com.opensymphony.module.propertyset.cached;
 import java.io.Serializable;
 import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.opensymphony.module.propertyset.PropertyException;
 import com.opensymphony.module.propertyset.PropertySet;
 import com.opensymphony.module.propertyset.PropertySetManager;
+import com.opensymphony.module.propertyset.TypedLookup;
 import com.opensymphony.module.propertyset.memory.SerializablePropertySet;
 
 /**
@@ -38,8 +42,27 @@ import com.opensymphony.module.propertyset.memory.SerializablePropertySet;
  * <b>Optional Args</b>
  * <ul>
  * <li><b>bulkload</b> - Boolean that, when true, causes the cache to be bulk loaded</li>
+ * <li><b>asyncBulkload</b> - Boolean that, when true, performs the bulk load in the background
+ * (see {@link BulkLoad}) instead of blocking initialisation</li>
+ * <li><b>bulkloadExecutor</b> - the {@link java.util.concurrent.Executor} to run an asynchronous bulk load on,
+ * defaults to a private pool that is shut down once loading completes</li>
+ * <li><b>bulkloadThreads</b> - Integer size of the default bulk load pool, defaults to the number of processors (at most 4)</li>
+ * <li><b>bulkloadChunkSize</b> - Integer number of keys loaded per task, defaults to 500</li>
+ * <li><b>bulkloadListener</b> - a {@link BulkLoadListener} notified of bulk load progress</li>
+ * <li><b>largeValueThreshold</b> - Integer size in bytes from which TEXT and OBJECT values are kept in a
+ * memory-sensitive {@link LargeValueCache} rather than pinned in the cache. Unset by default.</li>
+ * <li><b>largeValueBudget</b> - Long maximum number of bytes of large TEXT values to keep, defaults to 0,
+ * meaning that they are held through soft references instead</li>
+ * <li><b>compressLargeValues</b> - Boolean that, when true, deflates large TEXT values kept within the budget</li>
  * <li><b>serializableName</b> - the name that can be used to retrieve a SerializablePropertySet, defaults to "serializable"</li>
+ * <li><b>invalidationBus</b> - an {@link InvalidationBus} used to keep caches on several nodes consistent.
+ * Requires <b>entityName</b> and <b>entityId</b> to identify the cached entity.</li>
  * </ul>
+ * <p/>
+ * <p/>
+ * When an invalidation bus is configured, writes and removes are published to the other nodes and to
+ * the other caches of the same entity on this node, and changes made through those drop the affected
+ * keys from this cache.
  *
  * @author <a href="mailto:mike@atlassian.com">Mike Cannon-Brookes</a>
  * @version $Revision: 146 $
@@ -50,6 +73,17 @@ public class CachingPropertySet implements PropertySet, Serializable {
 
   PropertySet decoratedPS;
   SerializablePropertySet cachePS;
+  transient InvalidationBus invalidationBus;
+  transient volatile BulkLoad bulkLoad;
+  transient LargeValueCache largeValues;
+  String entityName;
+  long entityId;
+
+  //bumped by every write and invalidation, values read from decoratedPS before either for their key are not cached
+  final AtomicLong generation = new AtomicLong();
+  //generation at which each key was last written or invalidated, guarded by cachePS
+  private final Map<String, Long> invalidated = new HashMap<String, Long>();
+  private long invalidatedAll;
 
   //~ Methods ////////////////////////////////////////////////////////////////
 
@@ -125,55 +159,79 @@ public class CachingPropertySet implements PropertySet, Serializable {
   }
 
   public void setBoolean(String key, boolean value) throws PropertyException {
+    touch(key);
     decoratedPS.setBoolean(key, value);
-    cachePS.setBoolean(key, value);
+    store(BOOLEAN, key, value);
+    publish(key);
   }
 
   public boolean getBoolean(String key) throws PropertyException {
-    if(!cachePS.exists(key)) {
-      cachePS.setBoolean(key, decoratedPS.getBoolean(key));
+    Object value = cachePS.lookup(BOOLEAN, key);
+
+    if(value == TypedLookup.NOT_FOUND) {
+      long generation = this.generation.get();
+      value = decoratedPS.getBoolean(key);
+      fill(BOOLEAN, key, value, generation);
     }
 
-    return cachePS.getBoolean(key);
+    return (Boolean)value;
   }
 
   public void setDate(String key, Date value) throws PropertyException {
+    touch(key);
     decoratedPS.setDate(key, value);
-    cachePS.setDate(key, value);
+    store(DATE, key, value);
+    publish(key);
   }
 
   public Date getDate(String key) throws PropertyException {
-    if(!cachePS.exists(key)) {
-      cachePS.setDate(key, decoratedPS.getDate(key));
+    Object value = cachePS.lookup(DATE, key);
+
+    if(value == TypedLookup.NOT_FOUND) {
+      long generation = this.generation.get();
+      value = decoratedPS.getDate(key);
+      fill(DATE, key, value, generation);
     }
 
-    return cachePS.getDate(key);
+    return (Date)value;
   }
 
   public void setDouble(String key, double value) throws PropertyException {
+    touch(key);
     decoratedPS.setDouble(key, value);
-    cachePS.setDouble(key, value);
+    store(DOUBLE, key, value);
+    publish(key);
   }
 
   public double getDouble(String key) throws PropertyException {
-    if(!cachePS.exists(key)) {
-      cachePS.setDouble(key, decoratedPS.getDouble(key));
+    Object value = cachePS.lookup(DOUBLE, key);
+
+    if(value == TypedLookup.NOT_FOUND) {
+      long generation = this.generation.get();
+      value = decoratedPS.getDouble(key);
+      fill(DOUBLE, key, value, generation);
     }
 
-    return cachePS.getDouble(key);
+    return (Double)value;
   }
 
   public void setInt(String key, int value) throws PropertyException {
+    touch(key);
     decoratedPS.setInt(key, value);
-    cachePS.setInt(key, value);
+    store(INT, key, value);
+    publish(key);
   }
 
   public int getInt(String key) throws PropertyException {
-    if(!cachePS.exists(key)) {
-      cachePS.setInt(key, decoratedPS.getInt(key));
+    Object value = cachePS.lookup(INT, key);
+
+    if(value == TypedLookup.NOT_FOUND) {
+      long generation = this.generation.get();
+      value = decoratedPS.getInt(key);
+      fill(INT, key, value, generation);
     }
 
-    return cachePS.getInt(key);
+    return (Integer)value;
   }
 
   public Collection<String> getKeys() throws PropertyException {
@@ -193,29 +251,45 @@ public class CachingPropertySet implements PropertySet, Serializable {
   }
 
   public void setLong(String key, long value) throws PropertyException {
+    touch(key);
     decoratedPS.setLong(key, value);
-    cachePS.setLong(key, value);
+    store(LONG, key, value);
+    publish(key);
   }
 
   public long getLong(String key) throws PropertyException {
-    if(!cachePS.exists(key)) {
-      cachePS.setLong(key, decoratedPS.getLong(key));
+    Object value = cachePS.lookup(LONG, key);
+
+    if(value == TypedLookup.NOT_FOUND) {
+      long generation = this.generation.get();
+      value = decoratedPS.getLong(key);
+      fill(LONG, key, value, generation);
     }
 
-    return cachePS.getLong(key);
+    return (Long)value;
   }
 
   public void setObject(String key, Object value) throws PropertyException {
+    touch(key);
     decoratedPS.setObject(key, value);
-    cachePS.setObject(key, value);
+    store(OBJECT, key, value);
+    publish(key);
   }
 
   public Object getObject(String key) throws PropertyException {
-    if(!cachePS.exists(key)) {
-      cachePS.setObject(key, decoratedPS.getObject(key));
+    Object value = cachePS.lookup(OBJECT, key);
+
+    if(value == TypedLookup.NOT_FOUND) {
+      value = getLarge(OBJECT, key);
+
+      if(value == LargeValueCache.MISS) {
+        long generation = this.generation.get();
+        value = decoratedPS.getObject(key);
+        fill(OBJECT, key, value, generation);
+      }
     }
 
-    return cachePS.getObject(key);
+    return value;
   }
 
   public boolean isSettable(String property) {
@@ -223,29 +297,45 @@ public class CachingPropertySet implements PropertySet, Serializable {
   }
 
   public void setString(String key, String value) throws PropertyException {
+    touch(key);
     decoratedPS.setString(key, value);
-    cachePS.setString(key, value);
+    store(STRING, key, value);
+    publish(key);
   }
 
   public String getString(String key) throws PropertyException {
-    if(!cachePS.exists(key)) {
-      cachePS.setString(key, decoratedPS.getString(key));
+    Object value = cachePS.lookup(STRING, key);
+
+    if(value == TypedLookup.NOT_FOUND) {
+      long generation = this.generation.get();
+      value = decoratedPS.getString(key);
+      fill(STRING, key, value, generation);
     }
 
-    return cachePS.getString(key);
+    return (String)value;
   }
 
   public void setText(String key, String value) throws PropertyException {
+    touch(key);
     decoratedPS.setText(key, value);
-    cachePS.setText(key, value);
+    store(TEXT, key, value);
+    publish(key);
   }
 
   public String getText(String key) throws PropertyException {
-    if(!cachePS.exists(key)) {
-      cachePS.setText(key, decoratedPS.getText(key));
+    Object value = cachePS.lookup(TEXT, key);
+
+    if(value == TypedLookup.NOT_FOUND) {
+      value = getLarge(TEXT, key);
+
+      if(value == LargeValueCache.MISS) {
+        long generation = this.generation.get();
+        value = decoratedPS.getText(key);
+        fill(TEXT, key, value, generation);
+      }
     }
 
-    return cachePS.getText(key);
+    return (String)value;
   }
 
   public int getType(String key) throws PropertyException {
@@ -267,21 +357,89 @@ public class CachingPropertySet implements PropertySet, Serializable {
 
     cachePS = (SerializablePropertySet)PropertySetManager.getInstance(serializableName, null);
 
+    Integer largeValueThreshold = (Integer)args.get("largeValueThreshold");
+
+    if(largeValueThreshold != null) {
+      Number budget = (Number)args.get("largeValueBudget");
+      largeValues = new LargeValueCache(largeValueThreshold, (budget != null) ? budget.longValue() : 0, Boolean.TRUE.equals(args.get("compressLargeValues")));
+    }
+
     Boolean bulkload = (Boolean)args.get("bulkload");
 
     if((bulkload != null) && bulkload) {
-      PropertySetManager.clone(decoratedPS, cachePS);
+      if(Boolean.TRUE.equals(args.get("asyncBulkload"))) {
+        startBulkLoad(args);
+      } else {
+        PropertySetManager.clone(decoratedPS, cachePS);
+      }
+    }
+
+    invalidationBus = (InvalidationBus)args.get("invalidationBus");
+
+    if(invalidationBus != null) {
+      entityName = (String)args.get("entityName");
+
+      Number id = (Number)args.get("entityId");
+
+      if((entityName == null) || (id == null)) {
+        throw new IllegalArgumentException("entityName and entityId are required when using an invalidationBus");
+      }
+
+      entityId = id.longValue();
+      invalidationBus.register(this);
     }
   }
 
   public void remove() throws PropertyException {
-    cachePS.remove();
+    touch(null);
     decoratedPS.remove();
+    invalidateAll();
+    publish(null);
   }
 
   public void remove(String key) throws PropertyException {
-    cachePS.remove(key);
+    touch(key);
     decoratedPS.remove(key);
+    invalidate(key);
+    publish(key);
+  }
+
+  public String getEntityName() {
+    return entityName;
+  }
+
+  public long getEntityId() {
+    return entityId;
+  }
+
+  /**
+   * @return The asynchronous bulk load started by init, or null if there was none.
+   */
+  public BulkLoad getBulkLoad() {
+    return bulkLoad;
+  }
+
+  /**
+   * Drop a key from the cache, so that it is reloaded on next access.
+   */
+  public void invalidate(String key) {
+    synchronized(cachePS) {
+      invalidated.put(key, generation.incrementAndGet());
+      cachePS.remove(key);
+      removeLarge(key);
+    }
+  }
+
+  /**
+   * Drop all cached values.
+   */
+  public void invalidateAll() {
+    synchronized(cachePS) {
+      invalidatedAll = generation.incrementAndGet();
+      invalidated.clear();
+      cachePS.remove();
+      clearLarge();
+    }
   }
 
   public boolean supportsType(int type) {
@@ -291,4 +449,131 @@ public class CachingPropertySet implements PropertySet, Serializable {
   public boolean supportsTypes() {
     return decoratedPS.supportsTypes();
   }
+
+  /**
+   * Store a value in the large value tier if it belongs there. Callers hold the cachePS lock.
+   *
+   * @return true if the value was stored in the large value tier, false if it belongs in cachePS.
+   */
+  boolean cacheLarge(int type, String key, Object value) {
+    LargeValueCache large = largeValues;
+
+    if(large == null) {
+      return false;
+    }
+
+    if(large.isLarge(type, value)) {
+      cachePS.remove(key);
+      large.put(type, key, value);
+
+      return true;
+    }
+
+    large.remove(key);
+
+    return false;
+  }
+
+  /**
+   * Cache a value read from decoratedPS, unless its key has been written or invalidated since <code>generation</code>
+   * (so the value may be stale already) or cached by another thread in the meantime.
+   *
+   * @return true if the value was cached.
+   */
+  boolean fill(int type, String key, Object value, long generation) {
+    synchronized(cachePS) {
+      if(isInvalidatedSince(key, generation) || cachePS.exists(key) || ((largeValues != null) && largeValues.contains(key))) {
+        return false;
+      }
+
+      if(!cacheLarge(type, key, value)) {
+        BulkLoad.put(cachePS, type, key, value);
+      }
+
+      return true;
+    }
+  }
+
+  /**
+   * Cache a value written through this set, moving the key between cachePS and the large value tier as needed.
+   * The key's generation is bumped as by {@link #invalidate}, so that a value read before the write is not filled in.
+   */
+  private void store(int type, String key, Object value) {
+    synchronized(cachePS) {
+      invalidated.put(key, generation.incrementAndGet());
+
+      if(!cacheLarge(type, key, value)) {
+        BulkLoad.put(cachePS, type, key, value);
+      }
+    }
+  }
+
+  private boolean isInvalidatedSince(String key, long generation) {
+    if(invalidatedAll > generation) {
+      return true;
+    }
+
+    Long last = invalidated.get(key);
+
+    return (last != null) && (last > generation);
+  }
+
+  private Object getLarge(int type, String key) {
+    LargeValueCache large = largeValues;
+
+    return (large == null) ? LargeValueCache.MISS : large.get(type, key);
+  }
+
+  private void removeLarge(String key) {
+    if(largeValues != null) {
+      largeValues.remove(key);
+    }
+  }
+
+  private void clearLarge() {
+    if(largeValues != null) {
+      largeValues.clear();
+    }
+  }
+
+  private void startBulkLoad(Map<String, Object> args) {
+    Integer chunkSize = (Integer)args.get("bulkloadChunkSize");
+    Executor executor = (Executor)args.get("bulkloadExecutor");
+    ExecutorService owned = null;
+
+    if(executor == null) {
+      Integer threads = (Integer)args.get("bulkloadThreads");
+      int n = (threads != null) ? threads : Math.min(4, Runtime.getRuntime().availableProcessors());
+      owned = Executors.newFixedThreadPool(n, new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "propertyset-bulkload");
+          t.setDaemon(true);
+
+          return t;
+        }
+      });
+      executor = owned;
+    }
+
+    bulkLoad = new BulkLoad(this, (chunkSize != null) ? chunkSize : 500, (BulkLoadListener)args.get("bulkloadListener"));
+    bulkLoad.start(executor, owned);
+  }
+
+  private void touch(String key) {
+    BulkLoad load = bulkLoad;
+
+    if(load != null) {
+      if(load.isDone()) {
+        bulkLoad = null;
+      } else {
+        load.touch(key);
+      }
+    }
+  }
+
+  private void publish(String key) {
+    if(invalidationBus != null) {
+      invalidationBus.publish(this, key);
+    }
+  }
 }
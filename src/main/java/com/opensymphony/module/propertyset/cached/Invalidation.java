@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2002-2003 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.module.propertyset.cached;
+
+import java.io.Serializable;
+
+/**
+ * A single cache invalidation, identifying the property that changed.
+ * A null key means that every property of the entity is invalid
+ * (as happens when the whole propertyset is removed). A null entity name as well
+ * means that every cached property of every entity is invalid, which is sent when
+ * the actual invalidations could not be.
+ *
+ * @see InvalidationBus
+ */
+public final class Invalidation implements Serializable {
+  private static final long serialVersionUID = 3215479031250638120L;
+
+  //~ Instance fields ////////////////////////////////////////////////////////
+
+  private final String entityName;
+  private final long entityId;
+  private final String key;
+
+  //~ Constructors ///////////////////////////////////////////////////////////
+
+  public Invalidation(String entityName, long entityId, String key) {
+    this.entityName = entityName;
+    this.entityId = entityId;
+    this.key = key;
+  }
+
+  //~ Methods ////////////////////////////////////////////////////////////////
+
+  public String getEntityName() {
+    return entityName;
+  }
+
+  public long getEntityId() {
+    return entityId;
+  }
+
+  /**
+   * @return the invalidated key, or null if the whole entity is invalid.
+   */
+  public String getKey() {
+    return key;
+  }
+
+  public boolean equals(Object o) {
+    if(this == o) return true;
+    if(o == null || getClass() != o.getClass()) return false;
+
+    final Invalidation that = (Invalidation)o;
+
+    if(entityId != that.entityId) return false;
+    if(entityName != null ? !entityName.equals(that.entityName) : that.entityName != null) return false;
+    if(key != null ? !key.equals(that.key) : that.key != null) return false;
+
+    return true;
+  }
+
+  public int hashCode() {
+    int result;
+    result = (entityName != null) ? entityName.hashCode() : 0;
+    result = 29 * result + (int)(entityId ^ (entityId >>> 32));
+    result = 29 * result + ((key != null) ? key.hashCode() : 0);
+    return result;
+  }
+
+  public String toString() {
+    return "Invalidation{entityName='" + entityName + '\'' + ", entityId=" + entityId + ", key=" + ((key == null) ? "*" : "'" + key + '\'') + '}';
+  }
+}
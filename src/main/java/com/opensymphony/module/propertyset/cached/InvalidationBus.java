@@ -0,0 +1,439 @@
+/*
+ * Copyright (c) 2002-2003 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.module.propertyset.cached;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Propagates cache invalidations between {@link CachingPropertySet}s running
+ * on different nodes, making it possible to use caching without exclusive
+ * access to the underlying PropertySet.
+ * <p/>
+ * Every write or remove on a registered CachingPropertySet publishes an
+ * {@link Invalidation}, which is applied straight away to the other caches of
+ * the same entity registered with this bus. Invalidations are queued and sent by a background
+ * thread, which collects everything published within the flush interval
+ * (up to the batch size and the maximum message size) into a single message.
+ * If a message cannot be sent, a message invalidating everything is sent in
+ * its place, so that peers never keep stale values. When a message arrives from
+ * a peer, the matching entries are dropped from the local caches and will
+ * be reloaded from the decorated PropertySet on the next read.
+ * <p/>
+ * Each node should create one bus, start it, and pass it to its caching
+ * propertysets through the <code>invalidationBus</code> arg.
+ * <p/>
+ * <blockquote><code>
+ * InvalidationBus bus = new InvalidationBus(new MulticastTransport(group, 4446));<br>
+ * bus.start();<br>
+ * args.put("invalidationBus", bus);<br>
+ * args.put("entityName", "User");<br>
+ * args.put("entityId", 7L);<br>
+ * </code></blockquote>
+ *
+ * @see InvalidationTransport
+ */
+public class InvalidationBus {
+  //~ Static fields/initializers /////////////////////////////////////////////
+
+  //origin and count
+  private static final int HEADER_SIZE = 12;
+
+  //~ Instance fields ////////////////////////////////////////////////////////
+
+  private final InvalidationTransport transport;
+  private final long nodeId = new Random().nextLong();
+  private final BlockingQueue<Invalidation> queue = new LinkedBlockingQueue<Invalidation>();
+  private final Map<String, Set<CachingPropertySet>> caches = new HashMap<String, Set<CachingPropertySet>>();
+  private int batchSize = 256;
+  private long flushInterval = 10;
+  private int maxMessageSize = 65507;
+  private volatile boolean running;
+  private Thread publisher;
+
+  //~ Constructors ///////////////////////////////////////////////////////////
+
+  public InvalidationBus(InvalidationTransport transport) {
+    this.transport = transport;
+  }
+
+  //~ Methods ////////////////////////////////////////////////////////////////
+
+  /**
+   * Set the maximum number of invalidations sent in one message, defaults to 256.
+   */
+  public void setBatchSize(int batchSize) {
+    if(batchSize < 1) {
+      throw new IllegalArgumentException("batchSize must be positive");
+    }
+
+    this.batchSize = batchSize;
+  }
+
+  public int getBatchSize() {
+    return batchSize;
+  }
+
+  /**
+   * Set how long (in milliseconds) to wait for further invalidations
+   * before sending a batch, defaults to 10.
+   */
+  public void setFlushInterval(long flushInterval) {
+    this.flushInterval = flushInterval;
+  }
+
+  public long getFlushInterval() {
+    return flushInterval;
+  }
+
+  /**
+   * Set the maximum size in bytes of an encoded message, batches are split to stay below it.
+   * Defaults to 65507, the largest UDP datagram. {@link TcpTransport}s reject larger frames than their own
+   * <code>maxMessageSize</code>, so raise it there as well.
+   */
+  public void setMaxMessageSize(int maxMessageSize) {
+    if(maxMessageSize <= HEADER_SIZE) {
+      throw new IllegalArgumentException("maxMessageSize must be larger than " + HEADER_SIZE);
+    }
+
+    this.maxMessageSize = maxMessageSize;
+  }
+
+  public int getMaxMessageSize() {
+    return maxMessageSize;
+  }
+
+  public InvalidationTransport getTransport() {
+    return transport;
+  }
+
+  public synchronized void start() throws IOException {
+    if(running) {
+      return;
+    }
+
+    transport.start(new InvalidationTransport.Receiver() {
+      public void receive(byte[] message) {
+        InvalidationBus.this.receive(message);
+      }
+    });
+
+    running = true;
+    publisher = new Thread("propertyset-invalidation-publisher") {
+      public void run() {
+        publish();
+      }
+    };
+    publisher.setDaemon(true);
+    publisher.start();
+  }
+
+  /**
+   * Stop the bus, sending any invalidations still queued before closing the transport.
+   * Invalidations published once the bus is stopped only reach the caches on this node.
+   */
+  public void close() {
+    Thread t;
+
+    synchronized(this) {
+      if(!running) {
+        return;
+      }
+
+      running = false;
+      t = publisher;
+      publisher = null;
+    }
+
+    try {
+      t.join(Math.max(1000, flushInterval * 2));
+    } catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+
+    //whatever the publisher did not get to, or was published while it was stopping
+    queue.clear();
+    transport.close();
+  }
+
+  /**
+   * Invalidate a key in the caches registered on this node, and queue the invalidation
+   * to be sent to the other nodes if the bus is running.
+   *
+   * @param key The changed key, or null if the whole entity was removed.
+   */
+  public void publish(String entityName, long entityId, String key) {
+    publish(new Invalidation(entityName, entityId, key), null);
+  }
+
+  /**
+   * Publish a change made through a registered cache, which is left alone as it is already up to date.
+   *
+   * @param key The changed key, or null if the whole entity was removed.
+   */
+  public void publish(CachingPropertySet writer, String key) {
+    publish(new Invalidation(writer.getEntityName(), writer.getEntityId(), key), writer);
+  }
+
+  public void register(CachingPropertySet cache) {
+    String id = id(cache.getEntityName(), cache.getEntityId());
+
+    synchronized(caches) {
+      Set<CachingPropertySet> set = caches.get(id);
+
+      if(set == null) {
+        set = Collections.newSetFromMap(new WeakHashMap<CachingPropertySet, Boolean>());
+        caches.put(id, set);
+      }
+
+      set.add(cache);
+    }
+  }
+
+  public void unregister(CachingPropertySet cache) {
+    String id = id(cache.getEntityName(), cache.getEntityId());
+
+    synchronized(caches) {
+      Set<CachingPropertySet> set = caches.get(id);
+
+      if(set != null) {
+        set.remove(cache);
+
+        if(set.isEmpty()) {
+          caches.remove(id);
+        }
+      }
+    }
+  }
+
+  /**
+   * Apply invalidations to the caches registered on this node.
+   */
+  protected void invalidate(Collection<Invalidation> invalidations) {
+    for(Invalidation invalidation : invalidations) {
+      invalidate(invalidation, null);
+    }
+  }
+
+  private void publish(Invalidation invalidation, CachingPropertySet writer) {
+    invalidate(invalidation, writer);
+
+    //nothing drains the queue while stopped
+    if(running) {
+      queue.add(invalidation);
+    }
+  }
+
+  /**
+   * Apply an invalidation to the caches registered on this node, except <code>writer</code>.
+   */
+  private void invalidate(Invalidation invalidation, CachingPropertySet writer) {
+    List<CachingPropertySet> targets;
+
+    if(invalidation.getEntityName() == null) {
+      invalidateAll();
+
+      return;
+    }
+
+    synchronized(caches) {
+      Set<CachingPropertySet> set = caches.get(id(invalidation.getEntityName(), invalidation.getEntityId()));
+
+      if(set == null) {
+        return;
+      }
+
+      targets = new ArrayList<CachingPropertySet>(set);
+    }
+
+    for(CachingPropertySet cache : targets) {
+      if(cache == writer) {
+        continue;
+      }
+
+      if(invalidation.getKey() == null) {
+        cache.invalidateAll();
+      } else {
+        cache.invalidate(invalidation.getKey());
+      }
+    }
+  }
+
+  private void invalidateAll() {
+    List<CachingPropertySet> targets = new ArrayList<CachingPropertySet>();
+
+    synchronized(caches) {
+      for(Set<CachingPropertySet> set : caches.values()) {
+        targets.addAll(set);
+      }
+    }
+
+    for(CachingPropertySet cache : targets) {
+      cache.invalidateAll();
+    }
+  }
+
+  static byte[] encode(long origin, Collection<Invalidation> invalidations) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeLong(origin);
+    out.writeInt(invalidations.size());
+
+    for(Invalidation invalidation : invalidations) {
+      writeNullableUTF(out, invalidation.getEntityName());
+      out.writeLong(invalidation.getEntityId());
+      writeNullableUTF(out, invalidation.getKey());
+    }
+
+    out.flush();
+
+    return bytes.toByteArray();
+  }
+
+  static List<Invalidation> decode(DataInputStream in) throws IOException {
+    int count = in.readInt();
+    List<Invalidation> invalidations = new ArrayList<Invalidation>(count);
+
+    for(int i = 0; i < count; i++) {
+      String entityName = readNullableUTF(in);
+      long entityId = in.readLong();
+      String key = readNullableUTF(in);
+      invalidations.add(new Invalidation(entityName, entityId, key));
+    }
+
+    return invalidations;
+  }
+
+  private void receive(byte[] message) {
+    try {
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(message));
+
+      //our own messages may come back to us, they were applied locally when published
+      if(in.readLong() == nodeId) {
+        return;
+      }
+
+      invalidate(decode(in));
+    } catch(IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  private void publish() {
+    Set<Invalidation> batch = new LinkedHashSet<Invalidation>();
+
+    while(running || !queue.isEmpty()) {
+      try {
+        Invalidation first = queue.poll(100, TimeUnit.MILLISECONDS);
+
+        if(first == null) {
+          continue;
+        }
+
+        batch.add(first);
+
+        //collect the rest of the burst
+        long deadline = System.currentTimeMillis() + flushInterval;
+
+        while(batch.size() < batchSize) {
+          long remaining = deadline - System.currentTimeMillis();
+          Invalidation next = (remaining > 0) ? queue.poll(remaining, TimeUnit.MILLISECONDS) : queue.poll();
+
+          if(next == null) {
+            break;
+          }
+
+          batch.add(next);
+        }
+      } catch(InterruptedException e) {
+        running = false;
+      }
+
+      if(!batch.isEmpty()) {
+        send(batch);
+        batch.clear();
+      }
+    }
+  }
+
+  /**
+   * Send a batch as one or more messages of at most <code>maxMessageSize</code> bytes.
+   */
+  private void send(Collection<Invalidation> batch) {
+    List<Invalidation> message = new ArrayList<Invalidation>();
+    int size = HEADER_SIZE;
+
+    for(Invalidation invalidation : batch) {
+      int n = encodedSize(invalidation);
+
+      if(!message.isEmpty() && ((size + n) > maxMessageSize)) {
+        sendMessage(message);
+        message.clear();
+        size = HEADER_SIZE;
+      }
+
+      message.add(invalidation);
+      size += n;
+    }
+
+    sendMessage(message);
+  }
+
+  private void sendMessage(List<Invalidation> message) {
+    try {
+      transport.send(encode(nodeId, message));
+    } catch(IOException e) {
+      e.printStackTrace();
+
+      //dropping the message would leave peers with stale values, so have them drop everything instead
+      try {
+        transport.send(encode(nodeId, Collections.singletonList(new Invalidation(null, 0, null))));
+      } catch(IOException ex) {
+        ex.printStackTrace();
+      }
+    }
+  }
+
+  private static int encodedSize(Invalidation invalidation) {
+    return 1 + utfLength(invalidation.getEntityName()) + 8 + 1 + utfLength(invalidation.getKey());
+  }
+
+  /**
+   * Length of a string as written by <code>writeUTF</code>, including the length prefix.
+   */
+  private static int utfLength(String s) {
+    if(s == null) {
+      return 0;
+    }
+
+    int length = 2;
+
+    for(int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      length += ((c >= 0x0001) && (c <= 0x007F)) ? 1 : ((c > 0x07FF) ? 3 : 2);
+    }
+
+    return length;
+  }
+
+  private static String id(String entityName, long entityId) {
+    return entityName + '#' + entityId;
+  }
+
+  private static void writeNullableUTF(DataOutputStream out, String s) throws IOException {
+    out.writeBoolean(s != null);
+
+    if(s != null) {
+      out.writeUTF(s);
+    }
+  }
+
+  private static String readNullableUTF(DataInputStream in) throws IOException {
+    return in.readBoolean() ? in.readUTF() : null;
+  }
+}
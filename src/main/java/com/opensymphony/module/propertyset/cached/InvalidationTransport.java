@@ -0,0 +1,44 @@
+/*
+ * Copyright (c) 2002-2003 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.module.propertyset.cached;
+
+import java.io.IOException;
+
+/**
+ * Carries encoded invalidation batches between the {@link InvalidationBus}es
+ * of the nodes in a cluster.
+ * <p/>
+ * Transports only move opaque messages around; encoding, batching and
+ * filtering out a node's own messages are all handled by the bus.
+ *
+ * @see LoopbackTransport
+ * @see MulticastTransport
+ * @see TcpTransport
+ */
+public interface InvalidationTransport {
+  /**
+   * Start listening for messages from peers.
+   *
+   * @param receiver The callback to hand every incoming message to.
+   */
+  void start(Receiver receiver) throws IOException;
+
+  /**
+   * Send a message to all peers. Implementations may also deliver the
+   * message back to the sending node.
+   */
+  void send(byte[] message) throws IOException;
+
+  /**
+   * Stop listening and release any sockets held by this transport.
+   */
+  void close();
+
+  //~ Inner Interfaces ///////////////////////////////////////////////////////
+
+  interface Receiver {
+    void receive(byte[] message);
+  }
+}
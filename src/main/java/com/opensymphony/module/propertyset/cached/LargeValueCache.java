@@ -0,0 +1,284 @@
+/*
+ * Copyright (c) 2002-2003 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.module.propertyset.cached;
+
+import java.io.*;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import com.opensymphony.module.propertyset.PropertySet;
+
+/**
+ * Memory-sensitive tier of a {@link CachingPropertySet} for large TEXT and OBJECT values.
+ * <p/>
+ * Values at or above the size threshold are not pinned in the main cache. TEXT values
+ * are kept as (optionally compressed) UTF-8 bytes in a least-recently-used area bounded
+ * by a byte budget; if no budget is configured, they are held through soft references
+ * instead. OBJECT values are always held through soft references, as their size is
+ * unknown unless they are strings or byte arrays. Either way, the garbage collector or
+ * the budget can drop them, in which case they are reloaded from the decorated PropertySet.
+ */
+public class LargeValueCache {
+  //~ Static fields/initializers /////////////////////////////////////////////
+
+  static final Object MISS = new Object();
+
+  //~ Instance fields ////////////////////////////////////////////////////////
+
+  private final int threshold;
+  private final long budget;
+  private final boolean compress;
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+  private final ReferenceQueue<Object> cleared = new ReferenceQueue<Object>();
+  private long used;
+
+  //~ Constructors ///////////////////////////////////////////////////////////
+
+  /**
+   * @param threshold Size in bytes from which a value counts as large.
+   * @param budget Maximum number of bytes of TEXT to keep, or 0 to use soft references.
+   * @param compress Whether to deflate TEXT values kept within the budget.
+   */
+  public LargeValueCache(int threshold, long budget, boolean compress) {
+    this.threshold = threshold;
+    this.budget = budget;
+    this.compress = compress;
+  }
+
+  //~ Methods ////////////////////////////////////////////////////////////////
+
+  /**
+   * @return Number of bytes currently held within the budget.
+   */
+  public synchronized long getUsedBytes() {
+    return used;
+  }
+
+  public synchronized int size() {
+    purge();
+
+    return entries.size();
+  }
+
+  /**
+   * Whether a value of the given type should be kept in this tier.
+   */
+  public boolean isLarge(int type, Object value) {
+    if(value == null) {
+      return false;
+    }
+
+    switch(type) {
+      case PropertySet.TEXT:
+        return size(value) >= threshold;
+
+      case PropertySet.OBJECT:
+
+        long size = size(value);
+
+        return (size < 0) || (size >= threshold);
+
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * @return The cached value, or {@link #MISS} if it is not cached (or was cached as another type).
+   */
+  synchronized Object get(int type, String key) {
+    purge();
+
+    Entry entry = entries.get(key);
+
+    if((entry == null) || (entry.type != type)) {
+      return MISS;
+    }
+
+    if(entry.bytes != null) {
+      return decode(entry);
+    }
+
+    Object value = entry.get();
+
+    if(value == null) {
+      entries.remove(key);
+
+      return MISS;
+    }
+
+    return value;
+  }
+
+  /**
+   * @return true if a value of any type is cached for the key.
+   */
+  synchronized boolean contains(String key) {
+    purge();
+
+    Entry entry = entries.get(key);
+
+    return (entry != null) && ((entry.bytes != null) || (entry.get() != null));
+  }
+
+  synchronized void put(int type, String key, Object value) {
+    purge();
+    remove(key);
+
+    if((type == PropertySet.TEXT) && (budget > 0)) {
+      Entry entry = encode(key, (String)value);
+
+      if(entry.bytes.length > budget) {
+        return;
+      }
+
+      entries.put(key, entry);
+      used += entry.bytes.length;
+      evict();
+    } else {
+      entries.put(key, new Entry(key, type, value, cleared));
+    }
+  }
+
+  synchronized void remove(String key) {
+    Entry entry = entries.remove(key);
+
+    if((entry != null) && (entry.bytes != null)) {
+      used -= entry.bytes.length;
+    }
+  }
+
+  synchronized void clear() {
+    entries.clear();
+    used = 0;
+
+    while(cleared.poll() != null) {
+      //drain references of the discarded entries
+    }
+  }
+
+  private static long size(Object value) {
+    if(value instanceof String) {
+      return ((String)value).length() * 2L;
+    }
+
+    if(value instanceof byte[]) {
+      return ((byte[])value).length;
+    }
+
+    if(value instanceof char[]) {
+      return ((char[])value).length * 2L;
+    }
+
+    return -1;
+  }
+
+  private void evict() {
+    Iterator<Entry> i = entries.values().iterator();
+
+    while((used > budget) && i.hasNext()) {
+      Entry entry = i.next();
+
+      if(entry.bytes != null) {
+        used -= entry.bytes.length;
+        i.remove();
+      }
+    }
+  }
+
+  /**
+   * Forget the entries whose soft references have been cleared by the collector.
+   */
+  private void purge() {
+    Object ref;
+
+    while((ref = cleared.poll()) != null) {
+      Entry entry = (Entry)ref;
+
+      if(entries.get(entry.key) == entry) {
+        entries.remove(entry.key);
+      }
+    }
+  }
+
+  private Entry encode(String key, String value) {
+    try {
+      byte[] bytes = value.getBytes("UTF-8");
+
+      if(compress) {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(bytes.length / 2);
+        DeflaterOutputStream out = new DeflaterOutputStream(buffer);
+        out.write(bytes);
+        out.close();
+
+        if(buffer.size() < bytes.length) {
+          return new Entry(key, buffer.toByteArray(), true);
+        }
+      }
+
+      return new Entry(key, bytes, false);
+    } catch(IOException e) {
+      //in-memory streams
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static String decode(Entry entry) {
+    try {
+      if(!entry.compressed) {
+        return new String(entry.bytes, "UTF-8");
+      }
+
+      InputStream in = new InflaterInputStream(new ByteArrayInputStream(entry.bytes));
+      ByteArrayOutputStream out = new ByteArrayOutputStream(entry.bytes.length * 4);
+
+      try {
+        byte[] buffer = new byte[8192];
+        int n;
+
+        while((n = in.read(buffer)) > 0) {
+          out.write(buffer, 0, n);
+        }
+      } finally {
+        //frees the inflater's native memory now rather than whenever it is finalized
+        in.close();
+      }
+
+      return new String(out.toByteArray(), "UTF-8");
+    } catch(IOException e) {
+      //in-memory streams
+      throw new IllegalStateException(e);
+    }
+  }
+
+  //~ Inner Classes //////////////////////////////////////////////////////////
+
+  private static final class Entry extends SoftReference<Object> {
+    final String key;
+    final int type;
+    final byte[] bytes;
+    final boolean compressed;
+
+    Entry(String key, int type, Object value, ReferenceQueue<Object> queue) {
+      super(value, queue);
+      this.key = key;
+      this.type = type;
+      this.bytes = null;
+      this.compressed = false;
+    }
+
+    Entry(String key, byte[] bytes, boolean compressed) {
+      super(null);
+      this.key = key;
+      this.type = PropertySet.TEXT;
+      this.bytes = bytes;
+      this.compressed = compressed;
+    }
+  }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2002-2003 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.module.propertyset.cached;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * In-process transport that delivers messages synchronously to every
+ * transport connected to the same group. Mostly useful for tests, where
+ * several "nodes" live in the same JVM.
+ * <p/>
+ * <blockquote><code>
+ * LoopbackTransport first = new LoopbackTransport();<br>
+ * LoopbackTransport second = new LoopbackTransport(first);<br>
+ * </code></blockquote>
+ */
+public class LoopbackTransport implements InvalidationTransport {
+  //~ Instance fields ////////////////////////////////////////////////////////
+
+  private final List<LoopbackTransport> group;
+  private volatile Receiver receiver;
+
+  //~ Constructors ///////////////////////////////////////////////////////////
+
+  /**
+   * Create a transport in a new, empty group.
+   */
+  public LoopbackTransport() {
+    this.group = new CopyOnWriteArrayList<LoopbackTransport>();
+  }
+
+  /**
+   * Create a transport in the same group as <code>peer</code>.
+   */
+  public LoopbackTransport(LoopbackTransport peer) {
+    this.group = peer.group;
+  }
+
+  //~ Methods ////////////////////////////////////////////////////////////////
+
+  public void start(Receiver receiver) {
+    this.receiver = receiver;
+    group.add(this);
+  }
+
+  public void send(byte[] message) {
+    for(LoopbackTransport member : group) {
+      Receiver r = member.receiver;
+
+      if(r != null) {
+        r.receive(message);
+      }
+    }
+  }
+
+  public void close() {
+    group.remove(this);
+    receiver = null;
+  }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2002-2003 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.module.propertyset.cached;
+
+import java.io.IOException;
+import java.net.*;
+
+/**
+ * UDP multicast transport. Every node joins the same multicast group and
+ * port; messages are fire-and-forget, so a lost datagram means a stale
+ * cache entry on the peer that missed it.
+ * <p/>
+ * A single message has to fit in one datagram, which the default maximum
+ * message size of the {@link InvalidationBus} ensures.
+ */
+public class MulticastTransport implements InvalidationTransport {
+  //~ Static fields/initializers /////////////////////////////////////////////
+
+  private static final int MAX_DATAGRAM = 65507;
+
+  //~ Instance fields ////////////////////////////////////////////////////////
+
+  private final InetAddress group;
+  private final int port;
+  private int timeToLive = 1;
+  private MulticastSocket socket;
+  private Thread listener;
+
+  //~ Constructors ///////////////////////////////////////////////////////////
+
+  public MulticastTransport(InetAddress group, int port) {
+    this.group = group;
+    this.port = port;
+  }
+
+  //~ Methods ////////////////////////////////////////////////////////////////
+
+  /**
+   * Set the multicast TTL, defaults to 1 (local subnet only).
+   */
+  public void setTimeToLive(int timeToLive) {
+    this.timeToLive = timeToLive;
+  }
+
+  public int getTimeToLive() {
+    return timeToLive;
+  }
+
+  public synchronized void start(final Receiver receiver) throws IOException {
+    socket = new MulticastSocket(port);
+    socket.setTimeToLive(timeToLive);
+    socket.joinGroup(group);
+
+    final MulticastSocket s = socket;
+    listener = new Thread("propertyset-multicast-" + port) {
+      public void run() {
+        byte[] buffer = new byte[MAX_DATAGRAM];
+
+        while(!s.isClosed()) {
+          DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+
+          try {
+            s.receive(packet);
+          } catch(IOException e) {
+            if(!s.isClosed()) {
+              e.printStackTrace();
+            }
+
+            continue;
+          }
+
+          byte[] message = new byte[packet.getLength()];
+          System.arraycopy(packet.getData(), packet.getOffset(), message, 0, message.length);
+          receiver.receive(message);
+        }
+      }
+    };
+    listener.setDaemon(true);
+    listener.start();
+  }
+
+  public void send(byte[] message) throws IOException {
+    if(message.length > MAX_DATAGRAM) {
+      throw new IOException("Invalidation message of " + message.length + " bytes does not fit in a datagram");
+    }
+
+    MulticastSocket s;
+
+    synchronized(this) {
+      s = socket;
+    }
+
+    if(s == null) {
+      throw new IOException("Transport not started");
+    }
+
+    s.send(new DatagramPacket(message, message.length, group, port));
+  }
+
+  public synchronized void close() {
+    if(socket != null) {
+      try {
+        socket.leaveGroup(group);
+      } catch(IOException e) {
+        //closing anyway
+      }
+
+      socket.close();
+      socket = null;
+    }
+
+    listener = null;
+  }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright (c) 2002-2003 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.module.propertyset.cached;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+/**
+ * TCP transport for networks where multicast is not available. Each node
+ * listens on a port and keeps one outgoing connection per configured peer.
+ * Messages are written as length-prefixed frames. A connection announcing a frame
+ * larger than <code>maxMessageSize</code> is dropped.
+ * <p/>
+ * Connections to peers are opened lazily and re-opened on the next send
+ * after a failure, so a peer that is down simply misses the invalidations
+ * sent while it was unreachable.
+ */
+public class TcpTransport implements InvalidationTransport {
+  //~ Instance fields ////////////////////////////////////////////////////////
+
+  private final int port;
+  private final List<InetSocketAddress> peers;
+  private final Map<InetSocketAddress, DataOutputStream> connections = new HashMap<InetSocketAddress, DataOutputStream>();
+  private final Map<InetSocketAddress, Socket> sockets = new HashMap<InetSocketAddress, Socket>();
+  private final List<Socket> accepted = new ArrayList<Socket>();
+  private int connectTimeout = 2000;
+  private volatile int maxMessageSize = 65507;
+  private ServerSocket server;
+
+  //~ Constructors ///////////////////////////////////////////////////////////
+
+  /**
+   * @param port The local port to accept peer connections on.
+   * @param peers The addresses of the other nodes.
+   */
+  public TcpTransport(int port, List<InetSocketAddress> peers) {
+    this.port = port;
+    this.peers = new ArrayList<InetSocketAddress>(peers);
+  }
+
+  //~ Methods ////////////////////////////////////////////////////////////////
+
+  /**
+   * Set the timeout in milliseconds used when connecting to a peer, defaults to 2000.
+   */
+  public void setConnectTimeout(int connectTimeout) {
+    this.connectTimeout = connectTimeout;
+  }
+
+  public int getConnectTimeout() {
+    return connectTimeout;
+  }
+
+  /**
+   * Set the largest frame in bytes accepted from a peer, defaults to 65507.
+   * Must not be below the <code>maxMessageSize</code> of the {@link InvalidationBus}es sending to this node.
+   */
+  public void setMaxMessageSize(int maxMessageSize) {
+    this.maxMessageSize = maxMessageSize;
+  }
+
+  public int getMaxMessageSize() {
+    return maxMessageSize;
+  }
+
+  public synchronized void start(final Receiver receiver) throws IOException {
+    server = new ServerSocket(port);
+
+    final ServerSocket s = server;
+    Thread acceptor = new Thread("propertyset-tcp-" + port) {
+      public void run() {
+        while(!s.isClosed()) {
+          try {
+            Socket socket = s.accept();
+            read(socket, receiver);
+          } catch(IOException e) {
+            if(!s.isClosed()) {
+              e.printStackTrace();
+            }
+          }
+        }
+      }
+    };
+    acceptor.setDaemon(true);
+    acceptor.start();
+  }
+
+  public synchronized void send(byte[] message) throws IOException {
+    IOException failure = null;
+
+    for(InetSocketAddress peer : peers) {
+      try {
+        DataOutputStream out = connection(peer);
+        out.writeInt(message.length);
+        out.write(message);
+        out.flush();
+      } catch(IOException e) {
+        disconnect(peer);
+        failure = e;
+      }
+    }
+
+    if(failure != null) {
+      throw failure;
+    }
+  }
+
+  public synchronized void close() {
+    for(InetSocketAddress peer : new ArrayList<InetSocketAddress>(sockets.keySet())) {
+      disconnect(peer);
+    }
+
+    synchronized(accepted) {
+      for(Socket socket : accepted) {
+        closeQuietly(socket);
+      }
+
+      accepted.clear();
+    }
+
+    if(server != null) {
+      try {
+        server.close();
+      } catch(IOException e) {
+        //closing anyway
+      }
+
+      server = null;
+    }
+  }
+
+  private DataOutputStream connection(InetSocketAddress peer) throws IOException {
+    DataOutputStream out = connections.get(peer);
+
+    if(out == null) {
+      Socket socket = new Socket();
+      socket.setTcpNoDelay(true);
+      socket.connect(peer, connectTimeout);
+      out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+      sockets.put(peer, socket);
+      connections.put(peer, out);
+    }
+
+    return out;
+  }
+
+  private void disconnect(InetSocketAddress peer) {
+    connections.remove(peer);
+    closeQuietly(sockets.remove(peer));
+  }
+
+  private void read(final Socket socket, final Receiver receiver) {
+    synchronized(accepted) {
+      accepted.add(socket);
+    }
+
+    Thread reader = new Thread("propertyset-tcp-" + port + "-" + socket.getRemoteSocketAddress()) {
+      public void run() {
+        try {
+          DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+
+          while(true) {
+            int length = in.readInt();
+
+            //the length comes from the network, don't let it size the buffer unchecked
+            if((length < 0) || (length > maxMessageSize)) {
+              throw new IOException("Invalid frame length " + length + " from " + socket.getRemoteSocketAddress());
+            }
+
+            byte[] message = new byte[length];
+            in.readFully(message);
+            receiver.receive(message);
+          }
+        } catch(EOFException e) {
+          //peer went away
+        } catch(IOException e) {
+          if(!socket.isClosed()) {
+            e.printStackTrace();
+          }
+        } finally {
+          synchronized(accepted) {
+            accepted.remove(socket);
+          }
+
+          closeQuietly(socket);
+        }
+      }
+    };
+    reader.setDaemon(true);
+    reader.start();
+  }
+
+  private static void closeQuietly(Socket socket) {
+    if(socket != null) {
+      try {
+        socket.close();
+      } catch(IOException e) {
+        //ignore
+      }
+    }
+  }
+}
@@ -0,0 +1,487 @@
+/*
+ * Copyright (c) 2002-2003 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.module.propertyset.ejb3;
+
+import java.io.*;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.*;
+
+/**
+ * Default {@link ObjectSerializer}. Common value types (strings, boxed primitives, dates, byte arrays, big numbers
+ * and the standard list, set and map implementations holding them) are written with a one byte tag and variable
+ * length integers, without the class descriptors <code>ObjectOutputStream</code> emits. Anything else, including
+ * subclasses of the above, falls back to java serialization so that it round-trips with its exact class. So does
+ * a whole value holding such an object, or holding the same container, date or byte array more than once.
+ */
+public class CompactObjectSerializer implements ObjectSerializer {
+  //~ Static fields/initializers /////////////////////////////////////////////
+
+  private static final int NULL = 0;
+  private static final int STRING = 1;
+  private static final int INT = 2;
+  private static final int LONG = 3;
+  private static final int DOUBLE = 4;
+  private static final int FLOAT = 5;
+  private static final int TRUE = 6;
+  private static final int FALSE = 7;
+  private static final int SHORT = 8;
+  private static final int BYTE = 9;
+  private static final int CHAR = 10;
+  private static final int DATE = 11;
+  private static final int BYTES = 12;
+  private static final int BIG_INTEGER = 13;
+  private static final int BIG_DECIMAL = 14;
+  private static final int ARRAY_LIST = 15;
+  private static final int LINKED_LIST = 16;
+  private static final int HASH_SET = 17;
+  private static final int LINKED_HASH_SET = 18;
+  private static final int TREE_SET = 19;
+  private static final int HASH_MAP = 20;
+  private static final int LINKED_HASH_MAP = 21;
+  private static final int TREE_MAP = 22;
+  private static final int SERIALIZED = 127;
+
+  //~ Methods ////////////////////////////////////////////////////////////////
+
+  public byte[] serialize(Object value) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+    DataOutputStream out = new DataOutputStream(bytes);
+
+    if(isCompact(value, Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>()))) {
+      write(out, value);
+    } else {
+      out.writeByte(SERIALIZED);
+      writeSerialized(out, value);
+    }
+
+    out.flush();
+
+    return bytes.toByteArray();
+  }
+
+  public Object deserialize(byte[] bytes) throws IOException {
+    return read(new DataInputStream(new ByteArrayInputStream(bytes)));
+  }
+
+  /**
+   * @return The tag a value is written with, {@link #SERIALIZED} if it has no compact form.
+   */
+  private static int tag(Object value) {
+    Class<?> c = (value == null) ? null : value.getClass();
+
+    if(c == null) {
+      return NULL;
+    } else if(c == String.class) {
+      return STRING;
+    } else if(c == Integer.class) {
+      return INT;
+    } else if(c == Long.class) {
+      return LONG;
+    } else if(c == Double.class) {
+      return DOUBLE;
+    } else if(c == Float.class) {
+      return FLOAT;
+    } else if(c == Boolean.class) {
+      return (Boolean)value ? TRUE : FALSE;
+    } else if(c == Short.class) {
+      return SHORT;
+    } else if(c == Byte.class) {
+      return BYTE;
+    } else if(c == Character.class) {
+      return CHAR;
+    } else if(c == Date.class) {
+      return DATE;
+    } else if(c == byte[].class) {
+      return BYTES;
+    } else if(c == BigInteger.class) {
+      return BIG_INTEGER;
+    } else if(c == BigDecimal.class) {
+      return BIG_DECIMAL;
+    } else if(c == ArrayList.class) {
+      return ARRAY_LIST;
+    } else if(c == LinkedList.class) {
+      return LINKED_LIST;
+    } else if(c == HashSet.class) {
+      return HASH_SET;
+    } else if(c == LinkedHashSet.class) {
+      return LINKED_HASH_SET;
+    } else if((c == TreeSet.class) && (((TreeSet<?>)value).comparator() == null)) {
+      return TREE_SET;
+    } else if(c == HashMap.class) {
+      return HASH_MAP;
+    } else if(c == LinkedHashMap.class) {
+      return LINKED_HASH_MAP;
+    } else if((c == TreeMap.class) && (((TreeMap<?, ?>)value).comparator() == null)) {
+      return TREE_MAP;
+    }
+
+    return SERIALIZED;
+  }
+
+  /**
+   * Whether a value can be written in the compact format. That format has no back references, so it is only
+   * used when everything reachable has a compact form and no mutable object (container, date or byte array)
+   * is reachable twice, which also rules out cycles. Anything else is java serialized as a whole, which
+   * keeps shared references shared.
+   */
+  private static boolean isCompact(Object value, Set<Object> seen) {
+    switch(tag(value)) {
+      case SERIALIZED:
+        return false;
+
+      case DATE:
+      case BYTES:
+        return seen.add(value);
+
+      case ARRAY_LIST:
+      case LINKED_LIST:
+      case HASH_SET:
+      case LINKED_HASH_SET:
+      case TREE_SET:
+
+        if(!seen.add(value)) {
+          return false;
+        }
+
+        for(Object element : (Collection<?>)value) {
+          if(!isCompact(element, seen)) {
+            return false;
+          }
+        }
+
+        return true;
+
+      case HASH_MAP:
+      case LINKED_HASH_MAP:
+      case TREE_MAP:
+
+        if(!seen.add(value)) {
+          return false;
+        }
+
+        for(Map.Entry<?, ?> entry : ((Map<?, ?>)value).entrySet()) {
+          if(!isCompact(entry.getKey(), seen) || !isCompact(entry.getValue(), seen)) {
+            return false;
+          }
+        }
+
+        return true;
+
+      default:
+        return true;
+    }
+  }
+
+  private void write(DataOutputStream out, Object value) throws IOException {
+    int tag = tag(value);
+    out.writeByte(tag);
+
+    switch(tag) {
+      case STRING:
+        writeString(out, (String)value);
+
+        break;
+
+      case INT:
+        writeVarLong(out, (Integer)value);
+
+        break;
+
+      case LONG:
+        writeVarLong(out, (Long)value);
+
+        break;
+
+      case DOUBLE:
+        out.writeDouble((Double)value);
+
+        break;
+
+      case FLOAT:
+        out.writeFloat((Float)value);
+
+        break;
+
+      case SHORT:
+        out.writeShort((Short)value);
+
+        break;
+
+      case BYTE:
+        out.writeByte((Byte)value);
+
+        break;
+
+      case CHAR:
+        out.writeChar((Character)value);
+
+        break;
+
+      case DATE:
+        writeVarLong(out, ((Date)value).getTime());
+
+        break;
+
+      case BYTES:
+        writeBytes(out, (byte[])value);
+
+        break;
+
+      case BIG_INTEGER:
+        writeBytes(out, ((BigInteger)value).toByteArray());
+
+        break;
+
+      case BIG_DECIMAL:
+        writeVarLong(out, ((BigDecimal)value).scale());
+        writeBytes(out, ((BigDecimal)value).unscaledValue().toByteArray());
+
+        break;
+
+      case ARRAY_LIST:
+      case LINKED_LIST:
+      case HASH_SET:
+      case LINKED_HASH_SET:
+      case TREE_SET:
+        writeCollection(out, (Collection<?>)value);
+
+        break;
+
+      case HASH_MAP:
+      case LINKED_HASH_MAP:
+      case TREE_MAP:
+        writeMap(out, (Map<?, ?>)value);
+
+        break;
+
+      case SERIALIZED:
+        writeSerialized(out, value);
+
+        break;
+    }
+  }
+
+  private static void writeSerialized(DataOutputStream out, Object value) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectOutputStream oos = new ObjectOutputStream(bytes);
+    oos.writeObject(value);
+    oos.close();
+    writeBytes(out, bytes.toByteArray());
+  }
+
+  private Object read(DataInputStream in) throws IOException {
+    int tag = in.readUnsignedByte();
+
+    switch(tag) {
+      case NULL:
+        return null;
+
+      case STRING:
+        return readString(in);
+
+      case INT:
+        return (int)readVarLong(in);
+
+      case LONG:
+        return readVarLong(in);
+
+      case DOUBLE:
+        return in.readDouble();
+
+      case FLOAT:
+        return in.readFloat();
+
+      case TRUE:
+        return Boolean.TRUE;
+
+      case FALSE:
+        return Boolean.FALSE;
+
+      case SHORT:
+        return in.readShort();
+
+      case BYTE:
+        return in.readByte();
+
+      case CHAR:
+        return in.readChar();
+
+      case DATE:
+        return new Date(readVarLong(in));
+
+      case BYTES:
+        return readBytes(in);
+
+      case BIG_INTEGER:
+        return new BigInteger(readBytes(in));
+
+      case BIG_DECIMAL:
+
+        int scale = (int)readVarLong(in);
+
+        return new BigDecimal(new BigInteger(readBytes(in)), scale);
+
+      case ARRAY_LIST:
+        return readCollection(in, new ArrayList<Object>());
+
+      case LINKED_LIST:
+        return readCollection(in, new LinkedList<Object>());
+
+      case HASH_SET:
+        return readCollection(in, new HashSet<Object>());
+
+      case LINKED_HASH_SET:
+        return readCollection(in, new LinkedHashSet<Object>());
+
+      case TREE_SET:
+        return readCollection(in, new TreeSet<Object>());
+
+      case HASH_MAP:
+        return readMap(in, new HashMap<Object, Object>());
+
+      case LINKED_HASH_MAP:
+        return readMap(in, new LinkedHashMap<Object, Object>());
+
+      case TREE_MAP:
+        return readMap(in, new TreeMap<Object, Object>());
+
+      case SERIALIZED:
+
+        ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(readBytes(in)));
+
+        try {
+          return ois.readObject();
+        } catch(ClassNotFoundException e) {
+          IOException ex = new InvalidClassException(e.getMessage());
+          ex.initCause(e);
+          throw ex;
+        } finally {
+          ois.close();
+        }
+    }
+
+    throw new StreamCorruptedException("Unknown tag " + tag);
+  }
+
+  private void writeCollection(DataOutputStream out, Collection<?> collection) throws IOException {
+    writeVarLong(out, collection.size());
+
+    for(Object element : collection) {
+      write(out, element);
+    }
+  }
+
+  private Object readCollection(DataInputStream in, Collection<Object> collection) throws IOException {
+    for(long i = readVarLong(in); i > 0; i--) {
+      collection.add(read(in));
+    }
+
+    return collection;
+  }
+
+  private void writeMap(DataOutputStream out, Map<?, ?> map) throws IOException {
+    writeVarLong(out, map.size());
+
+    for(Map.Entry<?, ?> entry : map.entrySet()) {
+      write(out, entry.getKey());
+      write(out, entry.getValue());
+    }
+  }
+
+  private Object readMap(DataInputStream in, Map<Object, Object> map) throws IOException {
+    for(long i = readVarLong(in); i > 0; i--) {
+      map.put(read(in), read(in));
+    }
+
+    return map;
+  }
+
+  /**
+   * The char count followed by each char in modified UTF-8, as <code>writeUTF</code> does but without its length limit.
+   * Unlike a charset encoder, this keeps unpaired surrogates.
+   */
+  private static void writeString(DataOutputStream out, String s) throws IOException {
+    int length = s.length();
+    writeVarLong(out, length);
+
+    for(int i = 0; i < length; i++) {
+      char c = s.charAt(i);
+
+      if((c >= 0x0001) && (c <= 0x007F)) {
+        out.writeByte(c);
+      } else if(c <= 0x07FF) {
+        out.writeByte(0xC0 | (c >> 6));
+        out.writeByte(0x80 | (c & 0x3F));
+      } else {
+        out.writeByte(0xE0 | (c >> 12));
+        out.writeByte(0x80 | ((c >> 6) & 0x3F));
+        out.writeByte(0x80 | (c & 0x3F));
+      }
+    }
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    char[] chars = new char[(int)readVarLong(in)];
+
+    for(int i = 0; i < chars.length; i++) {
+      int b = in.readUnsignedByte();
+
+      if(b < 0x80) {
+        chars[i] = (char)b;
+      } else if((b & 0xE0) == 0xC0) {
+        chars[i] = (char)(((b & 0x1F) << 6) | (in.readUnsignedByte() & 0x3F));
+      } else if((b & 0xF0) == 0xE0) {
+        int b2 = in.readUnsignedByte();
+        chars[i] = (char)(((b & 0x0F) << 12) | ((b2 & 0x3F) << 6) | (in.readUnsignedByte() & 0x3F));
+      } else {
+        throw new UTFDataFormatException("Malformed string at char " + i);
+      }
+    }
+
+    return new String(chars);
+  }
+
+  private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+    writeVarLong(out, bytes.length);
+    out.write(bytes);
+  }
+
+  private static byte[] readBytes(DataInputStream in) throws IOException {
+    byte[] bytes = new byte[(int)readVarLong(in)];
+    in.readFully(bytes);
+
+    return bytes;
+  }
+
+  /**
+   * Zig-zag encoded, seven bits per byte, so that small magnitudes of either sign take a single byte.
+   */
+  private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+    long v = (value << 1) ^ (value >> 63);
+
+    while((v & ~0x7FL) != 0) {
+      out.writeByte((int)((v & 0x7F) | 0x80));
+      v >>>= 7;
+    }
+
+    out.writeByte((int)v);
+  }
+
+  private static long readVarLong(DataInputStream in) throws IOException {
+    long v = 0;
+
+    for(int shift = 0; shift < 64; shift += 7) {
+      int b = in.readUnsignedByte();
+      v |= (long)(b & 0x7F) << shift;
+
+      if((b & 0x80) == 0) {
+        return (v >>> 1) ^ -(v & 1);
+      }
+    }
+
+    throw new StreamCorruptedException("Malformed variable length integer");
+  }
+}
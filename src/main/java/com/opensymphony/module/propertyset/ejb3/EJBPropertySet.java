@@ -2,6 +2,7 @@ package com.opensymphony.module.propertyset.ejb3;
 
 import javax.ejb.Remove;
 
+import com.opensymphony.module.propertyset.BatchWriter;
 import com.opensymphony.module.propertyset.PropertySet;
 
 /**
@@ -9,11 +10,39 @@ import com.opensymphony.module.propertyset.PropertySet;
  *         Date: Jul 30, 2006
  *         Time: 11:41:29 AM
  */
-public interface EJBPropertySet extends PropertySet {
+public interface EJBPropertySet extends PropertySet, BatchWriter {
+  /**
+   * Version reported for keys that do not exist. Passed to {@link #compareAndSet(int, String, Object, int)}
+   * it only allows the key to be created.
+   */
+  int NO_VERSION = -1;
+
   void setEntityId(Long entityId);
 
   void setEntityName(String entityName);
 
+  /**
+   * Fetch all properties of the entity with a single query on first access.
+   */
+  void setEager(boolean eager);
+
+  /**
+   * Serve reads with projections that never add entries to the persistence context, and reject all writes.
+   */
+  void setReadOnly(boolean readOnly);
+
+  /**
+   * Version of the specified key, incremented on every write, or {@link #NO_VERSION} if it does not exist.
+   */
+  int getVersion(String key);
+
+  /**
+   * Write the specified property only if its version is still <code>expectedVersion</code>.
+   *
+   * @return false if the key was written by someone else since that version was read, in which case nothing is changed.
+   */
+  boolean compareAndSet(int type, String key, Object value, int expectedVersion);
+
   @Remove
   void destroy();
 
@@ -12,18 +12,49 @@ import javax.persistence.spi.PersistenceUnitTransactionType;
 
 import com.opensymphony.module.propertyset.AbstractPropertySet;
 import com.opensymphony.module.propertyset.PropertyException;
+import com.opensymphony.module.propertyset.PropertyImplementationException;
 
 /**
  * EJB3 propertyset implementation.
  * This implementation requires a couple of extra init args:
  * <li><code>manager</code>: Entity manager to use.
  * <li><code>transaction</code>: Can be either JTA or RESOURCE_LOCAL.
+ * <li><code>eager</code>: Optional, if true all properties of the entity are fetched with a single query
+ * on first access and subsequent reads, type checks and key listings are served from that batch.
+ * Defaults to false.
+ * <li><code>readOnly</code>: Optional, if true values, types and versions are read with projections rather than entity
+ * lookups, so that nothing accumulates in the persistence context however many reads are made, and all writes fail.
+ * Combined with <code>eager</code>, the batch is detached once fetched. Defaults to false.
+ * <li><code>upsert</code>: Optional, name of an {@link UpsertDialect} (for example h2 or postgresql). When set, each
+ * write is a single insert-or-update statement rather than a find followed by a merge. On Hibernate, each upsert
+ * also evicts the whole second level cache region for properties, wiping the cached properties of every entity, so
+ * leave it unset where that cache matters more than write latency.
+ * <li><code>batchSize</code>: Optional, number of writes flushed together while a batch started with
+ * {@link #beginBatch()} is in progress. Defaults to 50, and should match <code>hibernate.jdbc.batch_size</code>
+ * in the persistence unit for the inserts and updates to be sent as JDBC batches.
+ * <li><code>serializer</code>: Optional, {@link ObjectSerializer} (or its class name) used for OBJECT values.
+ * Defaults to {@link CompactObjectSerializer}.
+ * <li><code>compressThreshold</code>: Optional, size in bytes from which serialized OBJECT values are deflated.
+ * Defaults to -1, never.
+ * <li><code>retries</code>: Optional, number of times a write is retried when it loses a race with a concurrent writer
+ * to the same key, detected through the version column. Only writes running in a transaction started by this set can
+ * be retried. Defaults to 3.
+ * <li><code>queryCache</code>: Optional, if true key listings and eager fetches are cached in the hibernate query cache,
+ * so that warm listings do not reach the database. Requires <code>hibernate.cache.use_query_cache</code>, and
+ * the second level cache for the entries themselves. Defaults to false.
+ * <li><code>queryCacheRegion</code>: Optional, query cache region used when <code>queryCache</code> is on, so that
+ * sets of different entity types can be given regions with their own size and expiry. Defaults to {@link #QUERY_CACHE_REGION}.
  * <p/>
  * Note that this class can also be deployed as a stateful EJB3 session bean. In that case,
  * no configuration is required. It should also not be obtained via PropertySetManager,
  * but should instead be looked up in the container. The name the bean is deployed under
  * is 'OSPropertySet'. Before any operations are called on the stateful bean, {@link #setEntityId(Long)}
- * and {@link #setEntityName(String)} must be called.
+ * and {@link #setEntityName(String)} must be called. Eager loading can be enabled there via {@link #setEager(boolean)}.
+ * <p/>
+ * Prefix listings and key paging are key ranges that assume the database orders <code>keyName</code> the way
+ * {@link String#compareTo(String)} does, so the column needs a binary collation (for example
+ * <code>Latin1_General_BIN2</code> on SQL Server or <code>utf8mb4_bin</code> on MySQL, whose defaults are case insensitive).
+ * With a case insensitive or linguistic collation, listings can include keys with a different prefix and skip matching ones.
  *
  * @author Hani Suleiman
  *         Date: Nov 8, 2005
@@ -32,11 +63,30 @@ import com.opensymphony.module.propertyset.PropertyException;
 @Stateful(name = "OSPropertySet")
 @TransactionAttribute(TransactionAttributeType.SUPPORTS)
 public class EJBPropertySetImpl extends AbstractPropertySet implements EJBPropertySet {
+  public static final String QUERY_CACHE_REGION = PropertyEntry.class.getName() + ".keys";
+
+  //expected version of unconditional writes
+  private static final int ANY_VERSION = Integer.MIN_VALUE;
+
   private EntityManager entityManager;
   private Long entityId;
   private PersistenceUnitTransactionType transactionType;
   private String entityName;
   private boolean inContainer;
+  private boolean eager;
+  private boolean readOnly;
+  private boolean queryCache;
+  private String queryCacheRegion = QUERY_CACHE_REGION;
+  private UpsertDialect upsert;
+  private ObjectCodec codec = ObjectCodec.fromArgs(null, null);
+  private int batchSize = 50;
+  private int retries = 3;
+  //writes of the current batch not yet flushed, in key order, null when not batching
+  private SortedMap<String, PropertyEntry> pending;
+  private Set<String> inserts;
+  private boolean batchMustCommit;
+  //entries of this set keyed by key name, fetched in one go when eager
+  private SortedMap<String, PropertyEntry> loaded;
 
   @PersistenceContext(unitName = "pu")
   private EntityManager injectedEntityManager;
@@ -68,12 +118,14 @@ public class EJBPropertySetImpl extends AbstractPropertySet implements EJBProper
     injectedEntityManager = null;
     entityId = null;
     entityName = null;
+    loaded = null;
   }
 
   //~ Methods ////////////////////////////////////////////////////////////////
 
   public void setEntityId(Long entityId) {
     this.entityId = entityId;
+    loaded = null;
   }
 
   public Long getEntityId() {
@@ -90,14 +142,166 @@ public class EJBPropertySetImpl extends AbstractPropertySet implements EJBProper
 
   public void setEntityName(String entityName) {
     this.entityName = entityName;
+    loaded = null;
   }
 
   public String getEntityName() {
     return entityName;
   }
 
+  public void setEager(boolean eager) {
+    this.eager = eager;
+    loaded = null;
+  }
+
+  public boolean isEager() {
+    return eager;
+  }
+
+  public void setReadOnly(boolean readOnly) {
+    this.readOnly = readOnly;
+    loaded = null;
+  }
+
+  public boolean isReadOnly() {
+    return readOnly;
+  }
+
+  public boolean isSettable(String property) {
+    return !readOnly;
+  }
+
+  public void setQueryCache(boolean queryCache) {
+    this.queryCache = queryCache;
+  }
+
+  public boolean isQueryCache() {
+    return queryCache;
+  }
+
+  public void setQueryCacheRegion(String queryCacheRegion) {
+    this.queryCacheRegion = queryCacheRegion;
+  }
+
+  public String getQueryCacheRegion() {
+    return queryCacheRegion;
+  }
+
+  /**
+   * Hit ratio of the entry cache and of the query cache region of this set, keyed by region name.
+   * Regions that have not been looked up yet are left out, as are all of them unless hibernate is the provider
+   * and <code>hibernate.generate_statistics</code> is on.
+   */
+  public Map<String, Double> getCacheHitRatios() {
+    Map<String, Double> ratios = new LinkedHashMap<String, Double>();
+
+    try {
+      org.hibernate.stat.Statistics statistics = entityManager.unwrap(org.hibernate.Session.class).getSessionFactory().getStatistics();
+
+      if(statistics.isStatisticsEnabled()) {
+        for(String region : new String[]{PropertyEntry.class.getName(), queryCacheRegion}) {
+          org.hibernate.stat.SecondLevelCacheStatistics stats = statistics.getSecondLevelCacheStatistics(region);
+
+          if((stats != null) && ((stats.getHitCount() + stats.getMissCount()) > 0)) {
+            ratios.put(region, (double)stats.getHitCount() / (stats.getHitCount() + stats.getMissCount()));
+          }
+        }
+      }
+    } catch(PersistenceException e) {
+      //not running on hibernate
+    } catch(ClassCastException e) {
+      //not running on hibernate
+    } catch(NoClassDefFoundError e) {
+      //not running on hibernate
+    }
+
+    return ratios;
+  }
+
+  public void setUpsertDialect(String dialect) {
+    this.upsert = (dialect == null) ? null : UpsertDialect.forName(dialect);
+  }
+
+  public void setObjectCodec(ObjectCodec codec) {
+    this.codec = codec;
+  }
+
+  public void setBatchSize(int batchSize) {
+    this.batchSize = batchSize;
+  }
+
+  public int getBatchSize() {
+    return batchSize;
+  }
+
+  public void setRetries(int retries) {
+    this.retries = retries;
+  }
+
+  public int getRetries() {
+    return retries;
+  }
+
   public void clear() {
+    if(pending != null) {
+      flushBatch();
+    }
+
     entityManager.clear();
+    loaded = null;
+  }
+
+  /**
+   * Start grouping writes to this set into a single transaction. Existing entries are fetched once,
+   * new ones are persisted without a lookup, and changes are flushed in key order every
+   * <code>batchSize</code> writes.
+   */
+  @TransactionAttribute
+  public void beginBatch() throws PropertyException {
+    checkWritable();
+
+    if(pending != null) {
+      throw new IllegalStateException("Batch already in progress for " + entityName + "#" + entityId);
+    }
+
+    batchMustCommit = joinTransaction();
+    pending = new TreeMap<String, PropertyEntry>();
+    inserts = new HashSet<String>();
+    load();
+  }
+
+  @TransactionAttribute
+  public void endBatch() throws PropertyException {
+    if(pending == null) {
+      throw new IllegalStateException("No batch in progress for " + entityName + "#" + entityId);
+    }
+
+    try {
+      flushBatch();
+
+      if(batchMustCommit) {
+        entityManager.getTransaction().commit();
+      }
+    } finally {
+      endBatchState();
+    }
+  }
+
+  @TransactionAttribute
+  public void abortBatch() throws PropertyException {
+    if(pending == null) {
+      return;
+    }
+
+    try {
+      if(batchMustCommit && entityManager.getTransaction().isActive()) {
+        entityManager.getTransaction().rollback();
+      }
+    } finally {
+      //entries loaded for the batch may hold values that never made it to the database
+      endBatchState();
+      loaded = null;
+    }
   }
 
   @TransactionAttribute
@@ -121,30 +325,185 @@ public class EJBPropertySetImpl extends AbstractPropertySet implements EJBProper
 
   @TransactionAttribute
   public Collection<String> getKeys(String entityName, long entityId, String prefix, int type) throws PropertyException {
-    Query q;
+    if(isLoadable(entityName, entityId)) {
+      return getLoadedKeys(prefix, type);
+    }
 
-    if((type == 0) && (prefix == null)) {
-      q = entityManager.createNamedQuery("keys");
+    if((prefix != null) && (prefix.length() == 0)) {
+      prefix = null;
     }
-    //all types with the specified prefix
-    else if((type == 0) && (prefix != null)) {
-      q = entityManager.createNamedQuery("keys.prefix");
-      q.setParameter("prefix", prefix + '%');
+
+    String to = (prefix == null) ? null : prefixEnd(prefix);
+    List<String> keys = keysQuery(entityName, entityId, prefix, to, type, null).getResultList();
+
+    if((prefix != null) && (to == null)) {
+      keys = startingWith(keys, prefix);
     }
-    //type and prefix
-    else if((prefix == null) && (type != 0)) {
-      q = entityManager.createNamedQuery("keys.type");
-      q.setParameter("type", type);
+
+    return keys;
+  }
+
+  /**
+   * Page through keys with a <code>key &gt; after</code> predicate, so each page is a single index range scan
+   * regardless of how far into the listing it is.
+   */
+  @TransactionAttribute
+  public List<String> getKeys(String prefix, int type, String after, int limit) throws PropertyException {
+    if(isLoadable(entityName, entityId)) {
+      return super.getKeys(prefix, type, after, limit);
+    }
+
+    if((prefix != null) && (prefix.length() == 0)) {
+      prefix = null;
+    }
+
+    String to = (prefix == null) ? null : prefixEnd(prefix);
+
+    if((after != null) && (prefix != null)) {
+      if(after.compareTo(prefix) < 0) {
+        //page starts before the range, so the range start applies
+        after = null;
+      } else if((to != null) && (after.compareTo(to) >= 0)) {
+        return new ArrayList<String>();
+      }
+    }
+
+    Query q = keysQuery(entityName, entityId, prefix, to, type, after);
+
+    if((prefix != null) && (to == null)) {
+      List<String> keys = startingWith(q.getResultList(), prefix);
+
+      return new ArrayList<String>(keys.subList(0, Math.min(limit, keys.size())));
+    }
+
+    q.setMaxResults(limit);
+
+    return q.getResultList();
+  }
+
+  /**
+   * Stream keys from a forward only scrollable result fetching <code>fetchSize</code> rows at a time.
+   * Pages through {@link #getKeys(String, int, String, int)} instead when running in a container, where
+   * the transaction ends when this method returns, or if the persistence provider is not hibernate.
+   */
+  @TransactionAttribute
+  public Cursor iterateKeys(String prefix, int type, int fetchSize) throws PropertyException {
+    if(isLoadable(entityName, entityId)) {
+      return super.iterateKeys(prefix, type, fetchSize);
+    }
+
+    if(inContainer) {
+      return new PagedCursor(this, prefix, type, fetchSize);
+    }
+
+    if((prefix != null) && (prefix.length() == 0)) {
+      prefix = null;
+    }
+
+    String to = (prefix == null) ? null : prefixEnd(prefix);
+    Query q = keysQuery(entityName, entityId, prefix, to, type, null);
+
+    try {
+      org.hibernate.Query query = q.unwrap(org.hibernate.Query.class);
+      query.setFetchSize(fetchSize);
+      query.setReadOnly(true);
+
+      return new ScrollCursor(query.scroll(org.hibernate.ScrollMode.FORWARD_ONLY), (to == null) ? prefix : null);
+    } catch(PersistenceException e) {
+      //not running on hibernate
+    } catch(ClassCastException e) {
+      //not running on hibernate
+    } catch(NoClassDefFoundError e) {
+      //not running on hibernate
+    }
+
+    return new PagedCursor(this, prefix, type, fetchSize);
+  }
+
+  private Query keysQuery(String entityName, long entityId, String prefix, String to, int type, String after) {
+    Query q;
+
+    //prefixes are matched as a key range so that the (entityName, entityId, keyName) index can be used
+    if((prefix == null) || (to == null)) {
+      if(after == null) {
+        q = entityManager.createNamedQuery((type == 0) ? "keys" : "keys.type");
+      } else {
+        q = entityManager.createNamedQuery((type == 0) ? "keys.after" : "keys.typeAfter");
+        q.setParameter("after", after);
+      }
     } else {
-      q = entityManager.createNamedQuery("keys.prefixAndType");
-      q.setParameter("prefix", prefix + '%');
+      if(after == null) {
+        q = entityManager.createNamedQuery((type == 0) ? "keys.prefix" : "keys.prefixAndType");
+        q.setParameter("from", prefix);
+      } else {
+        q = entityManager.createNamedQuery((type == 0) ? "keys.prefixAfter" : "keys.prefixAndTypeAfter");
+        q.setParameter("after", after);
+      }
+
+      q.setParameter("to", to);
+    }
+
+    if(type != 0) {
       q.setParameter("type", type);
     }
 
     q.setParameter("entityId", entityId);
     q.setParameter("entityName", entityName);
 
-    return q.getResultList();
+    return cacheable(q);
+  }
+
+  /**
+   * Mark the query as cacheable if enabled. Cached results are invalidated by hibernate whenever properties
+   * are written through the entity manager, including the native upserts and bulk deletes of this class.
+   */
+  private Query cacheable(Query q) {
+    if(queryCache) {
+      q.setHint("org.hibernate.cacheable", Boolean.TRUE);
+      q.setHint("org.hibernate.cacheRegion", queryCacheRegion);
+    }
+
+    return q;
+  }
+
+  private static List<String> startingWith(List<String> keys, String prefix) {
+    List<String> matching = new ArrayList<String>();
+
+    for(String key : keys) {
+      if(key.startsWith(prefix)) {
+        matching.add(key);
+      }
+    }
+
+    return matching;
+  }
+
+  /**
+   * Read all properties with one query, including the text and object values that are otherwise fetched lazily.
+   * Entries are detached once visited, so that the persistence context does not grow with the set.
+   */
+  @TransactionAttribute
+  public void visitEntries(String prefix, Visitor visitor) throws PropertyException {
+    Query q = entityManager.createNamedQuery("entries.values");
+    q.setParameter("entityId", entityId);
+    q.setParameter("entityName", entityName);
+    q.setHint("org.hibernate.readOnly", Boolean.TRUE);
+
+    List<PropertyEntry> entries = q.getResultList();
+    boolean more = true;
+
+    for(PropertyEntry entry : entries) {
+      String key = entry.getPrimaryKey().getKey();
+
+      if(more && ((prefix == null) || key.startsWith(prefix))) {
+        more = visitor.visit(key, entry.getType(), value(entry, entry.getType(), key));
+      }
+
+      //keep an entry managed if it was already part of the context, such as the eagerly loaded batch
+      if((loaded == null) || (loaded.get(key) != entry)) {
+        entityManager.detach(entry);
+      }
+    }
   }
 
   public void setTransactionType(PersistenceUnitTransactionType transactionType) {
@@ -160,8 +519,7 @@ public class EJBPropertySetImpl extends AbstractPropertySet implements EJBProper
   }
 
   public int getType(String entityName, long entityId, String key) throws PropertyException {
-    EntryPK pk = new EntryPK(entityName, entityId, key);
-    PropertyEntry entry = entityManager.find(PropertyEntry.class, pk);
+    PropertyEntry entry = find(entityName, entityId, key);
 
     if(entry == null) {
       return 0;
@@ -170,13 +528,26 @@ public class EJBPropertySetImpl extends AbstractPropertySet implements EJBProper
     return entry.getType();
   }
 
+  public int getVersion(String key) throws PropertyException {
+    return getVersion(entityName, entityId, key);
+  }
+
+  public int getVersion(String entityName, long entityId, String key) throws PropertyException {
+    PropertyEntry entry = find(entityName, entityId, key);
+
+    if(entry == null) {
+      return NO_VERSION;
+    }
+
+    return entry.getVersion();
+  }
+
   public boolean exists(String key) throws PropertyException {
     return exists(entityName, entityId, key);
   }
 
   public boolean exists(String entityName, long entityId, String key) throws PropertyException {
-    EntryPK pk = new EntryPK(entityName, entityId, key);
-    PropertyEntry entry = entityManager.find(PropertyEntry.class, pk);
+    PropertyEntry entry = find(entityName, entityId, key);
 
     return entry != null;
   }
@@ -198,6 +569,38 @@ public class EJBPropertySetImpl extends AbstractPropertySet implements EJBProper
 
     Object tx = args.get("transaction");
     this.transactionType = (tx == null) ? PersistenceUnitTransactionType.RESOURCE_LOCAL : PersistenceUnitTransactionType.valueOf(tx.toString());
+
+    Object eagerArg = args.get("eager");
+    this.eager = (eagerArg != null) && Boolean.valueOf(eagerArg.toString());
+
+    Object readOnlyArg = args.get("readOnly");
+    this.readOnly = (readOnlyArg != null) && Boolean.valueOf(readOnlyArg.toString());
+
+    Object queryCacheArg = args.get("queryCache");
+    this.queryCache = (queryCacheArg != null) && Boolean.valueOf(queryCacheArg.toString());
+
+    Object queryCacheRegionArg = args.get("queryCacheRegion");
+
+    if(queryCacheRegionArg != null) {
+      this.queryCacheRegion = queryCacheRegionArg.toString();
+    }
+
+    Object batchSizeArg = args.get("batchSize");
+
+    if(batchSizeArg != null) {
+      this.batchSize = Integer.parseInt(batchSizeArg.toString());
+    }
+
+    Object retriesArg = args.get("retries");
+
+    if(retriesArg != null) {
+      this.retries = Integer.parseInt(retriesArg.toString());
+    }
+
+    codec = ObjectCodec.fromArgs(args.get("serializer"), args.get("compressThreshold"));
+
+    Object upsertArg = args.get("upsert");
+    this.upsert = (upsertArg == null) ? null : UpsertDialect.forName(upsertArg.toString());
   }
 
   @TransactionAttribute
@@ -212,36 +615,121 @@ public class EJBPropertySetImpl extends AbstractPropertySet implements EJBProper
 
   @TransactionAttribute
   public void remove(String entityName, long entityId, String key) throws PropertyException {
-    EntryPK pk = new EntryPK(entityName, entityId, key);
-    PropertyEntry entry = entityManager.find(PropertyEntry.class, pk);
+    checkWritable();
+
+    if((pending != null) && isLoadable(entityName, entityId)) {
+      pending.remove(key);
+
+      if(inserts.remove(key)) {
+        //never reached the database
+        loaded.remove(key);
+
+        return;
+      }
+    }
+
+    PropertyEntry entry = find(entityName, entityId, key);
 
     if(entry != null) {
-      entityManager.remove(entry);
+      entityManager.remove(entityManager.contains(entry) ? entry : entityManager.merge(entry));
+      unload(entityName, entityId, key);
     }
   }
 
+  /**
+   * Remove all properties of the specified entity with a single bulk delete, detach them from
+   * the entity manager and evict them from the second level cache.
+   */
   @TransactionAttribute
   public void remove(String entityName, long entityId) throws PropertyException {
+    checkWritable();
+
     boolean mustCommit = joinTransaction();
-    Query q = entityManager.createNamedQuery("entries");
+    Query q = entityManager.createNamedQuery("keys");
     q.setParameter("entityId", entityId);
     q.setParameter("entityName", entityName);
 
-    //idiot jalopy blows up on a real man's for loop, so we have to use jdk14 wanky version
-    List l = q.getResultList();
+    //only the keys are needed to evict the cached entries, so avoid hydrating them
+    List<String> keys = q.getResultList();
 
-    for(Iterator iterator = l.iterator(); iterator.hasNext(); ) {
-      Object o = iterator.next();
-      entityManager.remove(o);
+    if(!keys.isEmpty()) {
+      q = entityManager.createNamedQuery("entries.delete");
+      q.setParameter("entityId", entityId);
+      q.setParameter("entityName", entityName);
+      q.executeUpdate();
+    }
+
+    //the delete bypasses the persistence context, so entries read through find would still be served
+    for(String key : keys) {
+      detach(new EntryPK(entityName, entityId, key));
+    }
+
+    if(isLoadable(entityName, entityId)) {
+      if(loaded != null) {
+        for(PropertyEntry entry : loaded.values()) {
+          if(entityManager.contains(entry)) {
+            entityManager.detach(entry);
+          }
+        }
+      }
+
+      loaded = new TreeMap<String, PropertyEntry>();
+
+      if(pending != null) {
+        pending.clear();
+        inserts.clear();
+      }
     }
 
     if(mustCommit) {
       entityManager.getTransaction().commit();
     }
+
+    Cache cache = getCache();
+
+    if(cache != null) {
+      for(String key : keys) {
+        cache.evict(PropertyEntry.class, new EntryPK(entityName, entityId, key));
+      }
+    }
   }
 
-  public boolean supportsType(int type) {
-    return type != OBJECT;
+  /**
+   * Remove all properties of many entities of the same type, using one bulk delete per chunk of
+   * {@link PropertySetService#IN_CHUNK_SIZE} ids. As the affected keys are not known, the whole
+   * second level cache region for properties is evicted afterwards.
+   */
+  @TransactionAttribute
+  public void remove(String entityName, Collection<Long> entityIds) throws PropertyException {
+    checkWritable();
+
+    if(entityIds.isEmpty()) {
+      return;
+    }
+
+    boolean mustCommit = joinTransaction();
+    List<Long> ids = new ArrayList<Long>(new LinkedHashSet<Long>(entityIds));
+
+    for(int i = 0; i < ids.size(); i += PropertySetService.IN_CHUNK_SIZE) {
+      Query q = entityManager.createNamedQuery("entries.delete.entities");
+      q.setParameter("entityIds", ids.subList(i, Math.min(i + PropertySetService.IN_CHUNK_SIZE, ids.size())));
+      q.setParameter("entityName", entityName);
+      q.executeUpdate();
+    }
+
+    if((entityId != null) && ids.contains(entityId) && entityName.equals(this.entityName)) {
+      loaded = null;
+    }
+
+    if(mustCommit) {
+      entityManager.getTransaction().commit();
+    }
+
+    Cache cache = getCache();
+
+    if(cache != null) {
+      cache.evict(PropertyEntry.class);
+    }
   }
 
   @TransactionAttribute
@@ -251,21 +739,283 @@ public class EJBPropertySetImpl extends AbstractPropertySet implements EJBProper
 
   @TransactionAttribute
   protected void setImpl(String entityName, long entityId, int type, String key, Object value) throws PropertyException {
+    checkWritable();
+
+    if((pending != null) && isLoadable(entityName, entityId)) {
+      batch(type, key, value);
+
+      return;
+    }
+
+    if(upsert != null) {
+      upsert(entityName, entityId, type, key, value);
+
+      return;
+    }
+
+    write(entityName, entityId, type, key, value, ANY_VERSION);
+  }
+
+  @TransactionAttribute
+  public boolean compareAndSet(int type, String key, Object value, int expectedVersion) throws PropertyException {
+    return compareAndSet(entityName, entityId, type, key, value, expectedVersion);
+  }
+
+  /**
+   * Conditional write, always a find followed by a merge so that the version can be checked, even if an upsert dialect is set.
+   * When running in a transaction this set did not start, the change is flushed right away and a conflict
+   * detected then is thrown rather than reported as false, as the transaction can no longer commit.
+   */
+  @TransactionAttribute
+  public boolean compareAndSet(String entityName, long entityId, int type, String key, Object value, int expectedVersion) throws PropertyException {
+    checkWritable();
+
+    if((pending != null) && isLoadable(entityName, entityId)) {
+      //the check has to see what the batch wrote so far
+      flushBatch();
+    }
+
+    return write(entityName, entityId, type, key, value, expectedVersion);
+  }
+
+  /**
+   * Find and merge the entry, unless <code>expectedVersion</code> is given and does not match. If the commit fails
+   * because another writer updated or inserted the same key first, an unconditional write is retried on a fresh
+   * copy up to <code>retries</code> times, while a conditional one returns false.
+   */
+  private boolean write(String entityName, long entityId, int type, String key, Object value, int expectedVersion) throws PropertyException {
     EntryPK pk = new EntryPK(entityName, entityId, key);
-    PropertyEntry item;
 
-    boolean mustCommit = joinTransaction();
+    for(int attempt = 0; ; attempt++) {
+      boolean mustCommit = joinTransaction();
+      PropertyEntry item = find(entityName, entityId, key);
+      PropertyEntry merged = null;
+      boolean insert = item == null;
+
+      try {
+        if((expectedVersion != ANY_VERSION) && (expectedVersion != (insert ? NO_VERSION : item.getVersion()))) {
+          if(mustCommit) {
+            entityManager.getTransaction().rollback();
+          }
+
+          return false;
+        }
+
+        if(insert) {
+          item = new PropertyEntry();
+          item.setPrimaryKey(pk);
+          item.setType(type);
+        } else if(item.getType() != type) {
+          throw new PropertyException("Existing key '" + key + "' does not have matching type of " + type(type));
+        }
+
+        fill(item, type, value);
+
+        merged = entityManager.merge(item);
+
+        if(mustCommit) {
+          entityManager.getTransaction().commit();
+        } else if(expectedVersion != ANY_VERSION) {
+          entityManager.flush();
+        }
+
+        if(isLoadable(entityName, entityId)) {
+          loaded.put(key, merged);
+        }
+
+        return true;
+      } catch(RuntimeException e) {
+        if(mustCommit && entityManager.getTransaction().isActive()) {
+          entityManager.getTransaction().rollback();
+        }
 
-    item = entityManager.find(PropertyEntry.class, pk);
+        //the copies were filled in but not written (a loaded one is shared with readers), so the next read has to go to the database
+        forget(pk, item, merged);
+
+        if(!mustCommit) {
+          //the transaction belongs to the caller, who has to retry it as a whole
+          throw e;
+        }
+
+        if(!(e instanceof PersistenceException) || !isConflict((PersistenceException)e, insert, pk)) {
+          throw e;
+        }
+
+        if(expectedVersion != ANY_VERSION) {
+          return false;
+        }
+
+        if(attempt >= retries) {
+          throw e;
+        }
+      }
+    }
+  }
+
+  private boolean isConflict(PersistenceException e, boolean insert, EntryPK pk) {
+    for(Throwable t = e; t != null; t = t.getCause()) {
+      if(t instanceof OptimisticLockException) {
+        return true;
+      }
+    }
+
+    if(!insert) {
+      return false;
+    }
+
+    //duplicate keys are reported differently by every provider and database, so check whether the row is there now
+    Query q = entityManager.createNamedQuery("type");
+    q.setParameter("entityName", pk.getEntityName());
+    q.setParameter("entityId", pk.getEntityId());
+    q.setParameter("key", pk.getKey());
+
+    return !q.getResultList().isEmpty();
+  }
+
+  private void forget(EntryPK pk, PropertyEntry... copies) {
+    for(PropertyEntry copy : copies) {
+      if((copy != null) && entityManager.contains(copy)) {
+        entityManager.detach(copy);
+      }
+    }
+
+    if(isLoadable(pk.getEntityName(), pk.getEntityId())) {
+      loaded = null;
+    }
+
+    Cache cache = getCache();
+
+    if(cache != null) {
+      cache.evict(PropertyEntry.class, pk);
+    }
+  }
+
+  /**
+   * Detach the entry for a key if the entity manager holds one.
+   */
+  private void detach(EntryPK pk) {
+    try {
+      entityManager.detach(entityManager.getReference(PropertyEntry.class, pk));
+    } catch(EntityNotFoundException e) {
+      //nothing managed for this key
+    }
+  }
+
+  private void batch(int type, String key, Object value) throws PropertyException {
+    PropertyEntry item = loaded.get(key);
 
     if(item == null) {
       item = new PropertyEntry();
-      item.setPrimaryKey(pk);
+      item.setPrimaryKey(new EntryPK(entityName, entityId, key));
       item.setType(type);
+      loaded.put(key, item);
+      inserts.add(key);
     } else if(item.getType() != type) {
       throw new PropertyException("Existing key '" + key + "' does not have matching type of " + type(type));
     }
 
+    fill(item, type, value);
+    pending.put(key, item);
+
+    if(pending.size() >= batchSize) {
+      flushBatch();
+    }
+  }
+
+  /**
+   * Write out pending batch entries in key order, then detach them so the persistence context does not grow with the batch.
+   */
+  private void flushBatch() {
+    if(pending.isEmpty()) {
+      return;
+    }
+
+    List<PropertyEntry> flushed = new ArrayList<PropertyEntry>(pending.size());
+
+    for(Map.Entry<String, PropertyEntry> entry : pending.entrySet()) {
+      PropertyEntry item = entry.getValue();
+
+      if(inserts.contains(entry.getKey())) {
+        entityManager.persist(item);
+      } else if(!entityManager.contains(item)) {
+        item = entityManager.merge(item);
+        loaded.put(entry.getKey(), item);
+      }
+
+      flushed.add(item);
+    }
+
+    entityManager.flush();
+
+    for(PropertyEntry item : flushed) {
+      entityManager.detach(item);
+    }
+
+    pending.clear();
+    inserts.clear();
+  }
+
+  private void endBatchState() {
+    pending = null;
+    inserts = null;
+    batchMustCommit = false;
+
+    if(!eager) {
+      loaded = null;
+    }
+  }
+
+  private void upsert(String entityName, long entityId, int type, String key, Object value) throws PropertyException {
+    EntryPK pk = new EntryPK(entityName, entityId, key);
+    PropertyEntry cached = isLoadable(entityName, entityId) ? load().get(key) : null;
+
+    if((cached != null) && (cached.getType() != type)) {
+      throw new PropertyException("Existing key '" + key + "' does not have matching type of " + type(type));
+    }
+
+    boolean mustCommit = joinTransaction();
+
+    try {
+      //the statement bypasses the persistence context, so make sure a stale copy is not served afterwards
+      if(cached != null) {
+        if(entityManager.contains(cached)) {
+          entityManager.detach(cached);
+        }
+      } else {
+        detach(pk);
+      }
+
+      upsert.execute(entityManager, pk, type, (type == OBJECT) ? codec.encode(value) : value);
+
+      if(mustCommit) {
+        entityManager.getTransaction().commit();
+      }
+    } catch(RuntimeException e) {
+      if(mustCommit && entityManager.getTransaction().isActive()) {
+        entityManager.getTransaction().rollback();
+      }
+
+      throw e;
+    }
+
+    if(isLoadable(entityName, entityId)) {
+      PropertyEntry item = new PropertyEntry();
+      item.setPrimaryKey(pk);
+      item.setType(type);
+      //assumes no concurrent writer, a conditional write from a stale version fails safely
+      item.setVersion((cached == null) ? 0 : (cached.getVersion() + 1));
+      fill(item, type, value);
+      loaded.put(key, item);
+    }
+
+    Cache cache = getCache();
+
+    if(cache != null) {
+      cache.evict(PropertyEntry.class, pk);
+    }
+  }
+
+  private void fill(PropertyEntry item, int type, Object value) throws PropertyException {
     switch(type) {
       case BOOLEAN:
         item.setBoolValue((Boolean)value);
@@ -302,14 +1052,14 @@ public class EJBPropertySetImpl extends AbstractPropertySet implements EJBProper
 
         break;
 
+      case OBJECT:
+        item.setObjectValue(codec.encode(value));
+
+        break;
+
       default:
         throw new PropertyException("type " + type + " not supported");
     }
-
-    entityManager.merge(item);
-    if(mustCommit) {
-      entityManager.getTransaction().commit();
-    }
   }
 
   @TransactionAttribute
@@ -363,13 +1113,27 @@ public class EJBPropertySetImpl extends AbstractPropertySet implements EJBProper
 
   @TransactionAttribute
   protected Object get(String entityName, long entityId, int type, String key) throws PropertyException {
-    EntryPK pk = new EntryPK(entityName, entityId, key);
-    PropertyEntry entry = entityManager.find(PropertyEntry.class, pk);
+    PropertyEntry entry = find(entityName, entityId, key);
 
     if(entry == null) {
       return null;
     }
 
+    return value(entry, type, key);
+  }
+
+  @TransactionAttribute
+  public Object lookup(int type, String key) throws PropertyException {
+    PropertyEntry entry = find(entityName, entityId, key);
+
+    if(entry == null) {
+      return NOT_FOUND;
+    }
+
+    return value(entry, type, key);
+  }
+
+  private Object value(PropertyEntry entry, int type, String key) throws PropertyException {
     if(entry.getType() != type) {
       throw new PropertyException("key '" + key + "' does not have matching type of " + type(type) + ", but is of type " + type(entry.getType()));
     }
@@ -385,7 +1149,7 @@ public class EJBPropertySetImpl extends AbstractPropertySet implements EJBProper
         return entry.getStringValue();
 
       case TEXT:
-        return entry.getTextValue();
+        return (String)lazy(entry, "textValue", "text");
 
       case LONG:
         return entry.getLongValue();
@@ -395,11 +1159,157 @@ public class EJBPropertySetImpl extends AbstractPropertySet implements EJBProper
 
       case DATE:
         return entry.getDateValue();
+
+      case OBJECT:
+        return codec.decode((byte[])lazy(entry, "objectValue", "object"));
     }
 
     throw new PropertyException("type " + type(type) + " not supported");
   }
 
+  /**
+   * Find the entry for the specified key, going to the eagerly fetched batch if it belongs to this set.
+   * When read-only, the entry is a projection that is not managed by the entity manager.
+   */
+  private PropertyEntry find(String entityName, long entityId, String key) {
+    if(isLoadable(entityName, entityId)) {
+      return load().get(key);
+    }
+
+    if(readOnly) {
+      return project(entityName, entityId, key);
+    }
+
+    return entityManager.find(PropertyEntry.class, new EntryPK(entityName, entityId, key));
+  }
+
+  /**
+   * Read everything but the text and object values into a new entry, those are fetched by {@link #lazy} if needed.
+   */
+  private PropertyEntry project(String entityName, long entityId, String key) {
+    Query q = entityManager.createNamedQuery("value");
+    q.setParameter("entityName", entityName);
+    q.setParameter("entityId", entityId);
+    q.setParameter("key", key);
+
+    List result = q.getResultList();
+
+    if(result.isEmpty()) {
+      return null;
+    }
+
+    Object[] row = (Object[])result.get(0);
+    PropertyEntry entry = new PropertyEntry();
+    entry.setPrimaryKey(new EntryPK(entityName, entityId, key));
+    entry.setType(((Number)row[0]).intValue());
+    entry.setBoolValue((Boolean)row[1]);
+    entry.setIntValue(((Number)row[2]).intValue());
+    entry.setLongValue(((Number)row[3]).longValue());
+    entry.setDoubleValue(((Number)row[4]).doubleValue());
+    entry.setStringValue((String)row[5]);
+    entry.setDateValue((Date)row[6]);
+    entry.setVersion(((Number)row[7]).intValue());
+
+    return entry;
+  }
+
+  private boolean isLoadable(String entityName, long entityId) {
+    return (eager || (pending != null)) && (this.entityId != null) && (this.entityId == entityId) && (entityName != null) && entityName.equals(this.entityName);
+  }
+
+  private SortedMap<String, PropertyEntry> load() {
+    if(loaded == null) {
+      Query q = cacheable(entityManager.createNamedQuery("entries"));
+      q.setParameter("entityId", entityId);
+      q.setParameter("entityName", entityName);
+
+      if(readOnly) {
+        //no snapshots for dirty checking, the entries are detached below anyway
+        q.setHint("org.hibernate.readOnly", Boolean.TRUE);
+      }
+
+      SortedMap<String, PropertyEntry> entries = new TreeMap<String, PropertyEntry>();
+
+      for(Object o : q.getResultList()) {
+        PropertyEntry entry = (PropertyEntry)o;
+        entries.put(entry.getPrimaryKey().getKey(), entry);
+
+        if(readOnly) {
+          entityManager.detach(entry);
+        }
+      }
+
+      loaded = entries;
+    }
+
+    return loaded;
+  }
+
+  private void unload(String entityName, long entityId, String key) {
+    if(isLoadable(entityName, entityId) && (loaded != null)) {
+      loaded.remove(key);
+    }
+  }
+
+  private Collection<String> getLoadedKeys(String prefix, int type) {
+    SortedMap<String, PropertyEntry> entries = load();
+
+    if(prefix != null) {
+      entries = entries.tailMap(prefix);
+    }
+
+    List<String> keys = new ArrayList<String>();
+
+    for(Map.Entry<String, PropertyEntry> entry : entries.entrySet()) {
+      if((prefix != null) && !entry.getKey().startsWith(prefix)) {
+        break;
+      }
+
+      if((type == 0) || (entry.getValue().getType() == type)) {
+        keys.add(entry.getKey());
+      }
+    }
+
+    return keys;
+  }
+
+  private Cache getCache() {
+    try {
+      return entityManager.getEntityManagerFactory().getCache();
+    } catch(IllegalStateException e) {
+      //factory closed or no second level cache, nothing to evict
+      return null;
+    }
+  }
+
+  /**
+   * Text and object values are fetched lazily, so read them with a projection unless the entry already holds its value.
+   * This also covers entries that have been detached since they were loaded, and read-only projections which never hold them.
+   */
+  private Object lazy(PropertyEntry entry, String attribute, String query) {
+    EntryPK pk = entry.getPrimaryKey();
+    boolean projected = readOnly && !isLoadable(pk.getEntityName(), pk.getEntityId()) && !entityManager.contains(entry);
+
+    if(!projected && entityManager.getEntityManagerFactory().getPersistenceUnitUtil().isLoaded(entry, attribute)) {
+      return "textValue".equals(attribute) ? entry.getTextValue() : entry.getObjectValue();
+    }
+
+    Query q = entityManager.createNamedQuery(query);
+    q.setParameter("entityName", pk.getEntityName());
+    q.setParameter("entityId", pk.getEntityId());
+    q.setParameter("key", pk.getKey());
+
+    List result = q.getResultList();
+
+    return result.isEmpty() ? null : result.get(0);
+  }
+
+  private void checkWritable() {
+    if(readOnly) {
+      throw new PropertyImplementationException("Properties of " + entityName + "#" + entityId + " are read-only");
+    }
+  }
+
   private boolean joinTransaction() {
     if(inContainer) return false;
     boolean mustCommit = false;
@@ -426,6 +1336,59 @@ public class EJBPropertySetImpl extends AbstractPropertySet implements EJBProper
   }
 
   public String toString() {
-    return "EJBPropertySetImpl#" + hashCode() + "{entityManager=" + entityManager + ", entityId=" + entityId + ", entityName='" + entityName + '\'' + ", inContainer=" + inContainer + '}';
+    return "EJBPropertySetImpl#" + hashCode() + "{entityManager=" + entityManager + ", entityId=" + entityId + ", entityName='" + entityName + '\'' + ", inContainer=" + inContainer + ", eager=" + eager + ", readOnly=" + readOnly + ", upsert=" + upsert + ", batchSize=" + batchSize + ", retries=" + retries + ", queryCache=" + queryCache + '}';
+  }
+
+  //~ Inner Classes //////////////////////////////////////////////////////////
+
+  private static class ScrollCursor implements Cursor {
+    private final org.hibernate.ScrollableResults results;
+    //only set when the prefix could not be turned into a key range
+    private final String prefix;
+    private String next;
+    private boolean closed;
+
+    ScrollCursor(org.hibernate.ScrollableResults results, String prefix) {
+      this.results = results;
+      this.prefix = prefix;
+    }
+
+    public boolean hasNext() {
+      while((next == null) && !closed) {
+        if(!results.next()) {
+          close();
+        } else {
+          String key = (String)results.get(0);
+
+          if((prefix == null) || key.startsWith(prefix)) {
+            next = key;
+          }
+        }
+      }
+
+      return next != null;
+    }
+
+    public String next() {
+      if(!hasNext()) {
+        throw new NoSuchElementException();
+      }
+
+      String key = next;
+      next = null;
+
+      return key;
+    }
+
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+    public void close() {
+      if(!closed) {
+        closed = true;
+        results.close();
+      }
+    }
   }
 }
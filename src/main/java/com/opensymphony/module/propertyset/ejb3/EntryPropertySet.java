@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2002-2003 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.module.propertyset.ejb3;
+
+import java.util.*;
+
+import com.opensymphony.module.propertyset.AbstractPropertySet;
+import com.opensymphony.module.propertyset.PropertyException;
+import com.opensymphony.module.propertyset.PropertyImplementationException;
+
+/**
+ * Read-only propertyset over entries that have already been loaded for a single entity,
+ * as returned by {@link PropertySetService#load(String, Collection, Collection)}.
+ * All lookups are served from memory, any attempt to modify the set fails.
+ */
+public class EntryPropertySet extends AbstractPropertySet {
+  //~ Instance fields ////////////////////////////////////////////////////////
+
+  private final String entityName;
+  private final long entityId;
+  private final SortedMap<String, PropertyEntry> entries;
+  private final ObjectCodec codec;
+
+  //~ Constructors ///////////////////////////////////////////////////////////
+
+  public EntryPropertySet(String entityName, long entityId, ObjectCodec codec) {
+    this.entityName = entityName;
+    this.entityId = entityId;
+    this.codec = codec;
+    this.entries = new TreeMap<String, PropertyEntry>();
+  }
+
+  //~ Methods ////////////////////////////////////////////////////////////////
+
+  public String getEntityName() {
+    return entityName;
+  }
+
+  public long getEntityId() {
+    return entityId;
+  }
+
+  public Collection<String> getKeys(String prefix, int type) throws PropertyException {
+    SortedMap<String, PropertyEntry> range = (prefix == null) ? entries : entries.tailMap(prefix);
+    List<String> keys = new ArrayList<String>();
+
+    for(Map.Entry<String, PropertyEntry> entry : range.entrySet()) {
+      if((prefix != null) && !entry.getKey().startsWith(prefix)) {
+        break;
+      }
+
+      if((type == 0) || (entry.getValue().getType() == type)) {
+        keys.add(entry.getKey());
+      }
+    }
+
+    return keys;
+  }
+
+  public int getType(String key) throws PropertyException {
+    PropertyEntry entry = entries.get(key);
+
+    return (entry == null) ? 0 : entry.getType();
+  }
+
+  public boolean exists(String key) throws PropertyException {
+    return entries.containsKey(key);
+  }
+
+  public boolean isSettable(String property) {
+    return false;
+  }
+
+  public void remove(String key) throws PropertyException {
+    throw new PropertyImplementationException("Properties of " + entityName + "#" + entityId + " are read-only");
+  }
+
+  public void remove() throws PropertyException {
+    throw new PropertyImplementationException("Properties of " + entityName + "#" + entityId + " are read-only");
+  }
+
+  public Object lookup(int type, String key) throws PropertyException {
+    PropertyEntry entry = entries.get(key);
+
+    if(entry == null) {
+      return NOT_FOUND;
+    }
+
+    return value(entry, type, key);
+  }
+
+  protected Object get(int type, String key) throws PropertyException {
+    PropertyEntry entry = entries.get(key);
+
+    if(entry == null) {
+      return null;
+    }
+
+    return value(entry, type, key);
+  }
+
+  protected void setImpl(int type, String key, Object value) throws PropertyException {
+    throw new PropertyImplementationException("Properties of " + entityName + "#" + entityId + " are read-only");
+  }
+
+  void add(PropertyEntry entry) {
+    entries.put(entry.getPrimaryKey().getKey(), entry);
+  }
+
+  private Object value(PropertyEntry entry, int type, String key) throws PropertyException {
+    if(entry.getType() != type) {
+      throw new PropertyException("key '" + key + "' does not have matching type of " + type(type) + ", but is of type " + type(entry.getType()));
+    }
+
+    switch(type) {
+      case BOOLEAN:
+        return entry.getBoolValue();
+
+      case DOUBLE:
+        return entry.getDoubleValue();
+
+      case STRING:
+        return entry.getStringValue();
+
+      case TEXT:
+        return entry.getTextValue();
+
+      case LONG:
+        return entry.getLongValue();
+
+      case INT:
+        return entry.getIntValue();
+
+      case DATE:
+        return entry.getDateValue();
+
+      case OBJECT:
+        return codec.decode(entry.getObjectValue());
+    }
+
+    throw new PropertyException("type " + type(type) + " not supported");
+  }
+
+  public String toString() {
+    return "EntryPropertySet{entityName='" + entityName + "', entityId=" + entityId + ", keys=" + entries.keySet() + '}';
+  }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2002-2003 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.module.propertyset.ejb3;
+
+import java.io.*;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import com.opensymphony.module.propertyset.PropertyImplementationException;
+
+/**
+ * Turns OBJECT values into the stored bytes: the output of an {@link ObjectSerializer}, behind a one byte
+ * header saying whether it was deflated. Serialized values at or above the compression threshold are
+ * deflated, if that makes them smaller.
+ */
+public class ObjectCodec {
+  //~ Static fields/initializers /////////////////////////////////////////////
+
+  private static final int PLAIN = 0;
+  private static final int DEFLATED = 1;
+
+  //~ Instance fields ////////////////////////////////////////////////////////
+
+  private final ObjectSerializer serializer;
+  private final int compressThreshold;
+
+  //~ Constructors ///////////////////////////////////////////////////////////
+
+  /**
+   * @param compressThreshold size in bytes from which serialized values are compressed, or -1 to never compress.
+   */
+  public ObjectCodec(ObjectSerializer serializer, int compressThreshold) {
+    this.serializer = serializer;
+    this.compressThreshold = compressThreshold;
+  }
+
+  //~ Methods ////////////////////////////////////////////////////////////////
+
+  /**
+   * Create a codec from the <code>serializer</code> (an {@link ObjectSerializer} or class name)
+   * and <code>compressThreshold</code> args, defaulting to an uncompressed {@link CompactObjectSerializer}.
+   */
+  public static ObjectCodec fromArgs(Object serializerArg, Object compressThresholdArg) {
+    ObjectSerializer serializer;
+
+    if(serializerArg == null) {
+      serializer = new CompactObjectSerializer();
+    } else if(serializerArg instanceof ObjectSerializer) {
+      serializer = (ObjectSerializer)serializerArg;
+    } else {
+      try {
+        serializer = (ObjectSerializer)Class.forName(serializerArg.toString(), true, Thread.currentThread().getContextClassLoader()).newInstance();
+      } catch(Exception e) {
+        throw new IllegalArgumentException("Cannot create serializer " + serializerArg, e);
+      }
+    }
+
+    int threshold = (compressThresholdArg == null) ? -1 : Integer.parseInt(compressThresholdArg.toString());
+
+    return new ObjectCodec(serializer, threshold);
+  }
+
+  public byte[] encode(Object value) {
+    try {
+      byte[] bytes = serializer.serialize(value);
+
+      if((compressThreshold >= 0) && (bytes.length >= compressThreshold)) {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(bytes.length / 2);
+        buffer.write(DEFLATED);
+
+        DeflaterOutputStream out = new DeflaterOutputStream(buffer);
+        out.write(bytes);
+        out.close();
+
+        if(buffer.size() < bytes.length + 1) {
+          return buffer.toByteArray();
+        }
+      }
+
+      byte[] plain = new byte[bytes.length + 1];
+      plain[0] = PLAIN;
+      System.arraycopy(bytes, 0, plain, 1, bytes.length);
+
+      return plain;
+    } catch(IOException e) {
+      throw new PropertyImplementationException("Cannot serialize " + value.getClass().getName(), e);
+    }
+  }
+
+  public Object decode(byte[] stored) {
+    if(stored == null) {
+      return null;
+    }
+
+    try {
+      if(stored[0] == PLAIN) {
+        byte[] bytes = new byte[stored.length - 1];
+        System.arraycopy(stored, 1, bytes, 0, bytes.length);
+
+        return serializer.deserialize(bytes);
+      }
+
+      InputStream in = new InflaterInputStream(new ByteArrayInputStream(stored, 1, stored.length - 1));
+      ByteArrayOutputStream out = new ByteArrayOutputStream(stored.length * 4);
+
+      try {
+        byte[] buffer = new byte[8192];
+        int n;
+
+        while((n = in.read(buffer)) > 0) {
+          out.write(buffer, 0, n);
+        }
+      } finally {
+        //frees the inflater's native memory now rather than whenever it is finalized
+        in.close();
+      }
+
+      return serializer.deserialize(out.toByteArray());
+    } catch(IOException e) {
+      throw new PropertyImplementationException("Cannot deserialize stored object", e);
+    }
+  }
+}
@@ -0,0 +1,21 @@
+/*
+ * Copyright (c) 2002-2003 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.module.propertyset.ejb3;
+
+import java.io.IOException;
+
+/**
+ * Converts OBJECT property values to and from the bytes stored in <code>PropertyEntry.objectValue</code>.
+ * Implementations must be thread safe and have a public no-arg constructor if configured by class name.
+ *
+ * @see CompactObjectSerializer
+ */
+public interface ObjectSerializer {
+  //~ Methods ////////////////////////////////////////////////////////////////
+
+  byte[] serialize(Object value) throws IOException;
+
+  Object deserialize(byte[] bytes) throws IOException;
+}
@@ -15,9 +15,9 @@ import org.hibernate.annotations.Index;
  */
 @Entity
 @Table(name = "OS_PROPERTIES")
-@NamedQueries({@NamedQuery(name = "entries", query = "select p from PropertyEntry p where p.primaryKey.entityName=:entityName and p.primaryKey.entityId=:entityId"), @NamedQuery(name = "keys", query = "select p.primaryKey.key from PropertyEntry p where p.primaryKey.entityName=:entityName and p.primaryKey.entityId=:entityId"), @NamedQuery(name = "keys.prefix", query = "select p.primaryKey.key from PropertyEntry p where p.primaryKey.entityName=:entityName and p.primaryKey.entityId=:entityId and p.primaryKey.key like :prefix"), @NamedQuery(name = "keys.type", query = "select p.primaryKey.key from PropertyEntry p where p.primaryKey.entityName=:entityName and p.primaryKey.entityId=:entityId and p.type=:type"), @NamedQuery(name = "keys.prefixAndType", query = "select p.primaryKey.key from PropertyEntry p where p.primaryKey.entityName=:entityName and p.primaryKey.entityId=:entityId and p.type=:type and p.primaryKey.key like :prefix")})
+@NamedQueries({@NamedQuery(name = "entries", query = "select p from PropertyEntry p where p.primaryKey.entityName=:entityName and p.primaryKey.entityId=:entityId"), @NamedQuery(name = "entries.values", query = "select p from PropertyEntry p fetch all properties where p.primaryKey.entityName=:entityName and p.primaryKey.entityId=:entityId"), @NamedQuery(name = "entries.entities", query = "select p from PropertyEntry p fetch all properties where p.primaryKey.entityName=:entityName and p.primaryKey.entityId in (:entityIds)"), @NamedQuery(name = "entries.entitiesAndKeys", query = "select p from PropertyEntry p fetch all properties where p.primaryKey.entityName=:entityName and p.primaryKey.entityId in (:entityIds) and p.primaryKey.key in (:keys)"), @NamedQuery(name = "entries.delete", query = "delete from PropertyEntry p where p.primaryKey.entityName=:entityName and p.primaryKey.entityId=:entityId"), @NamedQuery(name = "entries.delete.entities", query = "delete from PropertyEntry p where p.primaryKey.entityName=:entityName and p.primaryKey.entityId in (:entityIds)"), @NamedQuery(name = "text", query = "select p.textValue from PropertyEntry p where p.primaryKey.entityName=:entityName and p.primaryKey.entityId=:entityId and p.primaryKey.key=:key"), @NamedQuery(name = "object", query = "select p.objectValue from PropertyEntry p where p.primaryKey.entityName=:entityName and p.primaryKey.entityId=:entityId and p.primaryKey.key=:key"), @NamedQuery(name = "value", query = "select p.type, p.boolValue, p.intValue, p.longValue, p.doubleValue, p.stringValue, p.dateValue, p.version from PropertyEntry p where p.primaryKey.entityName=:entityName and p.primaryKey.entityId=:entityId and p.primaryKey.key=:key"), @NamedQuery(name = "type", query = "select p.type from PropertyEntry p where p.primaryKey.entityName=:entityName and p.primaryKey.entityId=:entityId and p.primaryKey.key=:key"), @NamedQuery(name = "keys.after", query = "select p.primaryKey.key from PropertyEntry p where p.primaryKey.entityName=:entityName and p.primaryKey.entityId=:entityId and p.primaryKey.key > :after order by p.primaryKey.key"), @NamedQuery(name = "keys.typeAfter", query = "select p.primaryKey.key from PropertyEntry p where p.primaryKey.entityName=:entityName and p.primaryKey.entityId=:entityId and p.type=:type and p.primaryKey.key > :after order by p.primaryKey.key"), @NamedQuery(name = "keys.prefixAfter", query = "select p.primaryKey.key from PropertyEntry p where p.primaryKey.entityName=:entityName and p.primaryKey.entityId=:entityId and p.primaryKey.key > :after and p.primaryKey.key < :to order by p.primaryKey.key"), @NamedQuery(name = "keys.prefixAndTypeAfter", query = "select p.primaryKey.key from PropertyEntry p where p.primaryKey.entityName=:entityName and p.primaryKey.entityId=:entityId and p.type=:type and p.primaryKey.key > :after and p.primaryKey.key < :to order by p.primaryKey.key"), @NamedQuery(name = "keys", query = "select p.primaryKey.key from PropertyEntry p where p.primaryKey.entityName=:entityName and p.primaryKey.entityId=:entityId order by p.primaryKey.key"), @NamedQuery(name = "keys.prefix", query = "select p.primaryKey.key from PropertyEntry p where p.primaryKey.entityName=:entityName and p.primaryKey.entityId=:entityId and p.primaryKey.key >= :from and p.primaryKey.key < :to order by p.primaryKey.key"), @NamedQuery(name = "keys.type", query = "select p.primaryKey.key from PropertyEntry p where p.primaryKey.entityName=:entityName and p.primaryKey.entityId=:entityId and p.type=:type order by p.primaryKey.key"), @NamedQuery(name = "keys.prefixAndType", query = "select p.primaryKey.key from PropertyEntry p where p.primaryKey.entityName=:entityName and p.primaryKey.entityId=:entityId and p.type=:type and p.primaryKey.key >= :from and p.primaryKey.key < :to order by p.primaryKey.key")})
 @Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
-@org.hibernate.annotations.Table(appliesTo = "OS_PROPERTIES", indexes = {@Index(name = "os_PropertyEntry_allidx", columnNames = {"entityName", "entityId"})})
+@org.hibernate.annotations.Table(appliesTo = "OS_PROPERTIES", indexes = {@Index(name = "os_PropertyEntry_keyidx", columnNames = {"entityName", "entityId", "keyName"}), @Index(name = "os_PropertyEntry_typeidx", columnNames = {"entityName", "entityId", "type", "keyName"})})
 public class PropertyEntry {
   @EmbeddedId
   private EntryPK primaryKey;
@@ -27,11 +27,20 @@ public class PropertyEntry {
   private double doubleValue;
   private String stringValue;
 
-  @Lob @org.hibernate.annotations.Type(type = "org.hibernate.type.StringClobType")
+  //only fetched when read, provided the class is instrumented at build time; otherwise hibernate loads it eagerly
+  @Lob @Basic(fetch = FetchType.LAZY) @org.hibernate.annotations.Type(type = "org.hibernate.type.StringClobType")
   private String textValue;
+
+  //serialized by an ObjectCodec, lazy like textValue
+  @Lob @Basic(fetch = FetchType.LAZY)
+  private byte[] objectValue;
   private Date dateValue;
   private int type;
 
+  //incremented on every update, a write from a stale copy fails with an OptimisticLockException
+  @Version
+  private int version;
+
   public EntryPK getPrimaryKey() {
     return primaryKey;
   }
@@ -88,6 +97,14 @@ public class PropertyEntry {
     this.textValue = textValue;
   }
 
+  public byte[] getObjectValue() {
+    return objectValue;
+  }
+
+  public void setObjectValue(byte[] objectValue) {
+    this.objectValue = objectValue;
+  }
+
   public Date getDateValue() {
     return dateValue;
   }
@@ -103,4 +120,12 @@ public class PropertyEntry {
   public void setType(int type) {
     this.type = type;
   }
+
+  public int getVersion() {
+    return version;
+  }
+
+  public void setVersion(int version) {
+    this.version = version;
+  }
 }
@@ -1,9 +1,12 @@
 package com.opensymphony.module.propertyset.ejb3;
 
-import java.util.Date;
+import java.util.*;
 import javax.ejb.TransactionAttribute;
+import javax.persistence.Cache;
 import javax.persistence.EntityManager;
+import javax.persistence.EntityNotFoundException;
 import javax.persistence.PersistenceContext;
+import javax.persistence.Query;
 
 import com.opensymphony.module.propertyset.PropertyException;
 import com.opensymphony.module.propertyset.PropertySet;
@@ -16,13 +19,40 @@ import static com.opensymphony.module.propertyset.PropertySet.*;
  */
 @TransactionAttribute
 public class PropertySetService {
+  /**
+   * Maximum number of values bound to a single IN clause, kept well below the limits of common databases.
+   */
+  public static final int IN_CHUNK_SIZE = 500;
 
   @PersistenceContext(unitName="pu")
   private EntityManager entityManager;
 
+  private UpsertDialect upsert;
+  private ObjectCodec codec = ObjectCodec.fromArgs(null, null);
+
+  /**
+   * Codec for OBJECT values, defaults to an uncompressed {@link CompactObjectSerializer}.
+   */
+  public void setObjectCodec(ObjectCodec codec) {
+    this.codec = codec;
+  }
+
+  /**
+   * Write through a single insert-or-update statement for the specified {@link UpsertDialect},
+   * or null to find and persist entries. On Hibernate, each upsert also evicts the whole
+   * second level cache region for properties, so cached properties of every entity are
+   * reloaded afterwards.
+   */
+  public void setUpsertDialect(String dialect) {
+    this.upsert = (dialect == null) ? null : UpsertDialect.forName(dialect);
+  }
+
   public <T> T get(String entityName, long id, String key, Class<T> type) {
     EntryPK pk = new EntryPK(entityName, id, key);
     PropertyEntry entry = entityManager.find(PropertyEntry.class, pk);
+    if(entry.getType() == OBJECT) {
+      return type.cast(codec.decode(entry.getObjectValue()));
+    }
     if(type == Integer.class) {
       return (T)new Integer(entry.getIntValue());
     }
@@ -69,10 +99,30 @@ public class PropertySetService {
     } else if(value instanceof Date) {
       type = DATE;
     } else {
-      throw new IllegalArgumentException("Unsupported datatype " + value.getClass().getName() + " for entity " + entityName + "#" + id + " key " + key);
+      type = OBJECT;
     }
 
     EntryPK pk = new EntryPK(entityName, id, key);
+
+    if(upsert != null) {
+      try {
+        entityManager.detach(entityManager.getReference(PropertyEntry.class, pk));
+      } catch(EntityNotFoundException e) {
+        //nothing managed for this key
+      }
+
+      upsert.execute(entityManager, pk, type, (type == OBJECT) ? codec.encode(value) : value);
+
+      //the statement bypasses the second level cache, so make sure a stale copy is not served afterwards
+      Cache cache = getCache();
+
+      if(cache != null) {
+        cache.evict(PropertyEntry.class, pk);
+      }
+
+      return;
+    }
+
     PropertyEntry item;
 
     item = entityManager.find(PropertyEntry.class, pk);
@@ -114,6 +164,10 @@ public class PropertySetService {
         item.setDateValue((Date)value);
         break;
 
+      case OBJECT:
+        item.setObjectValue(codec.encode(value));
+        break;
+
       default:
         throw new PropertyException("type " + type + " not supported");
     }
@@ -121,6 +175,62 @@ public class PropertySetService {
     entityManager.persist(item);
   }
 
+  /**
+   * Load the properties of many entities of the same type at once, using chunked IN queries rather
+   * than a lookup per entity and key.
+   *
+   * @param entityName the entity type
+   * @param ids the ids of the entities to load
+   * @param keys the keys to load, or null to load all properties of each entity
+   * @return a read-only propertyset per requested id, in iteration order of the ids. Entities
+   * without properties get an empty set.
+   */
+  public Map<Long, PropertySet> load(String entityName, Collection<Long> ids, Collection<String> keys) {
+    Map<Long, PropertySet> result = new LinkedHashMap<Long, PropertySet>();
+
+    for(Long id : ids) {
+      if(!result.containsKey(id)) {
+        result.put(id, new EntryPropertySet(entityName, id, codec));
+      }
+    }
+
+    if((keys != null) && keys.isEmpty()) {
+      return result;
+    }
+
+    List<Long> idList = new ArrayList<Long>(result.keySet());
+    List<String> keyList = (keys == null) ? null : new ArrayList<String>(new LinkedHashSet<String>(keys));
+
+    for(int i = 0; i < idList.size(); i += IN_CHUNK_SIZE) {
+      List<Long> idChunk = idList.subList(i, Math.min(i + IN_CHUNK_SIZE, idList.size()));
+
+      if(keyList == null) {
+        Query q = entityManager.createNamedQuery("entries.entities");
+        load(q, entityName, idChunk, result);
+      } else {
+        for(int j = 0; j < keyList.size(); j += IN_CHUNK_SIZE) {
+          Query q = entityManager.createNamedQuery("entries.entitiesAndKeys");
+          q.setParameter("keys", keyList.subList(j, Math.min(j + IN_CHUNK_SIZE, keyList.size())));
+          load(q, entityName, idChunk, result);
+        }
+      }
+    }
+
+    return result;
+  }
+
+  private void load(Query q, String entityName, List<Long> ids, Map<Long, PropertySet> result) {
+    q.setParameter("entityName", entityName);
+    q.setParameter("entityIds", ids);
+    //the entries are never modified through the returned sets, so skip dirty checking them
+    q.setHint("org.hibernate.readOnly", Boolean.TRUE);
+
+    for(Object o : q.getResultList()) {
+      PropertyEntry entry = (PropertyEntry)o;
+      ((EntryPropertySet)result.get(entry.getPrimaryKey().getEntityId())).add(entry);
+    }
+  }
+
   private String type(int type) {
     switch(type) {
       case PropertySet.BOOLEAN:
@@ -151,4 +261,13 @@ public class PropertySetService {
         return null;
     }
   }
+
+  private Cache getCache() {
+    try {
+      return entityManager.getEntityManagerFactory().getCache();
+    } catch(IllegalStateException e) {
+      //factory closed or no second level cache, nothing to evict
+      return null;
+    }
+  }
 }
@@ -0,0 +1,333 @@
+/*
+ * Copyright (c) 2002-2003 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.module.propertyset.ejb3;
+
+import java.util.*;
+import javax.persistence.*;
+
+import com.opensymphony.module.propertyset.PropertyException;
+import com.opensymphony.module.propertyset.PropertySet;
+
+/**
+ * Writes a property with a single native insert-or-update statement against <code>OS_PROPERTIES</code>,
+ * rather than a find followed by a merge. The update only applies if the stored type matches the type
+ * being written, so a type mismatch shows up as no affected rows and is reported as a {@link PropertyException}.
+ * <p/>
+ * Supported dialects, as passed to {@link #forName(String)}:
+ * <ul>
+ * <li><code>h2</code>: <code>MERGE INTO ... USING (SELECT ...)</code>, also suitable for HSQLDB 2.x.
+ * <li><code>derby</code>: <code>MERGE INTO ... USING SYSIBM.SYSDUMMY1</code>, requires Derby 10.11 or later.
+ * <li><code>oracle</code>: <code>MERGE INTO ... USING (SELECT ... FROM DUAL)</code>.
+ * <li><code>sqlserver</code>: <code>MERGE INTO ... USING (SELECT ...)</code>.
+ * <li><code>postgresql</code>: <code>INSERT ... ON CONFLICT DO UPDATE</code>, requires PostgreSQL 9.5 or later.
+ * <li><code>mysql</code>: <code>INSERT ... ON DUPLICATE KEY UPDATE</code>.
+ * </ul>
+ * Inserted rows start at version 0 and updates increment it, as hibernate would for {@link PropertyEntry#getVersion()}.
+ * Statements go around the persistence context, callers are responsible for detaching any
+ * managed copy of the entry they write.
+ */
+public abstract class UpsertDialect {
+  //~ Static fields/initializers /////////////////////////////////////////////
+
+  static final String TABLE = "OS_PROPERTIES";
+
+  static final String[] COLUMNS = {"entityName", "entityId", "keyName", "type", "version", "boolValue", "intValue", "longValue", "doubleValue", "stringValue", "textValue", "dateValue", "objectValue"};
+
+  //first column holding a value, the ones before make up the key, type and version
+  static final int VALUES = 5;
+
+  private static final Map<String, UpsertDialect> DIALECTS = new HashMap<String, UpsertDialect>();
+
+  static {
+    register("h2", new MergeDialect("", false, ""));
+    register("sqlserver", new MergeDialect("", false, ";"));
+    register("oracle", new MergeDialect(" FROM DUAL", true, ""));
+    register("derby", new DerbyDialect());
+    register("postgresql", new PostgreSQLDialect());
+    register("mysql", new MySQLDialect());
+  }
+
+  //~ Instance fields ////////////////////////////////////////////////////////
+
+  private String name;
+
+  //~ Methods ////////////////////////////////////////////////////////////////
+
+  public static UpsertDialect forName(String name) {
+    UpsertDialect dialect = DIALECTS.get(name.toLowerCase());
+
+    if(dialect == null) {
+      throw new IllegalArgumentException("Unknown upsert dialect '" + name + "', expected one of " + new TreeSet<String>(DIALECTS.keySet()));
+    }
+
+    return dialect;
+  }
+
+  private static void register(String name, UpsertDialect dialect) {
+    dialect.name = name;
+    DIALECTS.put(name, dialect);
+  }
+
+  /**
+   * Insert or update the specified property. OBJECT values must already have been encoded by an {@link ObjectCodec}.
+   *
+   * @throws PropertyException if the key already exists with a different type
+   */
+  public void execute(EntityManager entityManager, EntryPK pk, int type, Object value) throws PropertyException {
+    Object[] values = values(pk, type, value);
+    String[] expressions = new String[COLUMNS.length];
+
+    for(int i = 0; i < COLUMNS.length; i++) {
+      //defaults are inlined so that nulls never have to be bound without a type
+      expressions[i] = (values[i] == null) ? "NULL" : "?";
+    }
+
+    List<Integer> parameters = new ArrayList<Integer>();
+    Query q = entityManager.createNativeQuery(sql(expressions, parameters));
+
+    for(int i = 0; i < parameters.size(); i++) {
+      Object parameter = values[parameters.get(i)];
+
+      if(parameter instanceof Date) {
+        q.setParameter(i + 1, (Date)parameter, TemporalType.TIMESTAMP);
+      } else {
+        q.setParameter(i + 1, parameter);
+      }
+    }
+
+    synchronize(q);
+
+    if(q.executeUpdate() == 0) {
+      //either the type did not match, or the row was left unchanged on databases that only count changed rows
+      Query check = entityManager.createNamedQuery("type");
+      check.setParameter("entityName", pk.getEntityName());
+      check.setParameter("entityId", pk.getEntityId());
+      check.setParameter("key", pk.getKey());
+
+      List result = check.getResultList();
+
+      if(!result.isEmpty() && (((Number)result.get(0)).intValue() != type)) {
+        throw new PropertyException("Existing key '" + pk.getKey() + "' does not have matching type of " + type);
+      }
+    }
+  }
+
+  /**
+   * Build the statement.
+   *
+   * @param expressions the expression to insert for each of the {@link #COLUMNS}, either a parameter or a literal
+   * @param parameters receives the column index of each parameter in the order they appear in the statement
+   */
+  abstract String sql(String[] expressions, List<Integer> parameters);
+
+  static String expression(int column, String[] expressions, List<Integer> parameters) {
+    if("?".equals(expressions[column])) {
+      parameters.add(column);
+    }
+
+    return expressions[column];
+  }
+
+  static String columns(int from) {
+    StringBuilder sb = new StringBuilder();
+
+    for(int i = from; i < COLUMNS.length; i++) {
+      if(i > from) {
+        sb.append(", ");
+      }
+
+      sb.append(COLUMNS[i]);
+    }
+
+    return sb.toString();
+  }
+
+  private static Object[] values(EntryPK pk, int type, Object value) throws PropertyException {
+    Object[] values = {pk.getEntityName(), pk.getEntityId(), pk.getKey(), type, 0, Boolean.FALSE, 0, 0L, 0.0d, null, null, null, null};
+
+    switch(type) {
+      case PropertySet.BOOLEAN:
+        values[5] = value;
+
+        break;
+
+      case PropertySet.INT:
+        values[6] = ((Number)value).intValue();
+
+        break;
+
+      case PropertySet.LONG:
+        values[7] = ((Number)value).longValue();
+
+        break;
+
+      case PropertySet.DOUBLE:
+        values[8] = ((Number)value).doubleValue();
+
+        break;
+
+      case PropertySet.STRING:
+        values[9] = value;
+
+        break;
+
+      case PropertySet.TEXT:
+        values[10] = value;
+
+        break;
+
+      case PropertySet.DATE:
+        values[11] = value;
+
+        break;
+
+      case PropertySet.OBJECT:
+        values[12] = value;
+
+        break;
+
+      default:
+        throw new PropertyException("type " + type + " not supported");
+    }
+
+    return values;
+  }
+
+  /**
+   * Restrict the cache invalidation done for native statements to properties, rather than the whole second level cache.
+   * Hibernate still evicts the entire property region, not just the row written.
+   */
+  private static void synchronize(Query q) {
+    try {
+      q.unwrap(org.hibernate.SQLQuery.class).addSynchronizedEntityClass(PropertyEntry.class);
+    } catch(PersistenceException e) {
+      //not running on hibernate
+    } catch(ClassCastException e) {
+      //not running on hibernate
+    } catch(NoClassDefFoundError e) {
+      //not running on hibernate
+    }
+  }
+
+  public String toString() {
+    return name;
+  }
+
+  //~ Inner Classes //////////////////////////////////////////////////////////
+
+  /**
+   * Standard <code>MERGE</code> with the new row supplied as a single row select.
+   */
+  static class MergeDialect extends UpsertDialect {
+    private final String from;
+    private final boolean conditionInWhere;
+    private final String terminator;
+
+    MergeDialect(String from, boolean conditionInWhere, String terminator) {
+      this.from = from;
+      this.conditionInWhere = conditionInWhere;
+      this.terminator = terminator;
+    }
+
+    String sql(String[] expressions, List<Integer> parameters) {
+      StringBuilder sb = new StringBuilder("MERGE INTO ").append(TABLE).append(" t USING (SELECT ");
+
+      for(int i = 0; i < COLUMNS.length; i++) {
+        sb.append((i == 0) ? "" : ", ").append(expression(i, expressions, parameters)).append(" AS ").append(COLUMNS[i]);
+      }
+
+      sb.append(from).append(") s ON (t.entityName = s.entityName AND t.entityId = s.entityId AND t.keyName = s.keyName)");
+      sb.append(" WHEN MATCHED").append(conditionInWhere ? "" : " AND t.type = s.type").append(" THEN UPDATE SET ");
+
+      for(int i = VALUES; i < COLUMNS.length; i++) {
+        sb.append((i == VALUES) ? "" : ", ").append(COLUMNS[i]).append(" = s.").append(COLUMNS[i]);
+      }
+
+      sb.append(", version = t.version + 1");
+
+      if(conditionInWhere) {
+        sb.append(" WHERE t.type = s.type");
+      }
+
+      sb.append(" WHEN NOT MATCHED THEN INSERT (").append(columns(0)).append(") VALUES (");
+
+      for(int i = 0; i < COLUMNS.length; i++) {
+        sb.append((i == 0) ? "s." : ", s.").append(COLUMNS[i]);
+      }
+
+      return sb.append(')').append(terminator).toString();
+    }
+  }
+
+  /**
+   * Derby only merges from a table, so the key and values are bound directly in each clause.
+   */
+  static class DerbyDialect extends UpsertDialect {
+    String sql(String[] expressions, List<Integer> parameters) {
+      StringBuilder sb = new StringBuilder("MERGE INTO ").append(TABLE).append(" t USING SYSIBM.SYSDUMMY1 ON t.entityName = ");
+      sb.append(expression(0, expressions, parameters)).append(" AND t.entityId = ").append(expression(1, expressions, parameters));
+      sb.append(" AND t.keyName = ").append(expression(2, expressions, parameters));
+      sb.append(" WHEN MATCHED AND t.type = ").append(expression(3, expressions, parameters)).append(" THEN UPDATE SET ");
+
+      for(int i = VALUES; i < COLUMNS.length; i++) {
+        sb.append((i == VALUES) ? "" : ", ").append(COLUMNS[i]).append(" = ").append(expression(i, expressions, parameters));
+      }
+
+      sb.append(", version = t.version + 1");
+
+      sb.append(" WHEN NOT MATCHED THEN INSERT (").append(columns(0)).append(") VALUES (");
+
+      for(int i = 0; i < COLUMNS.length; i++) {
+        sb.append((i == 0) ? "" : ", ").append(expression(i, expressions, parameters));
+      }
+
+      return sb.append(')').toString();
+    }
+  }
+
+  static class PostgreSQLDialect extends UpsertDialect {
+    String sql(String[] expressions, List<Integer> parameters) {
+      StringBuilder sb = new StringBuilder("INSERT INTO ").append(TABLE).append(" (").append(columns(0)).append(") VALUES (");
+
+      for(int i = 0; i < COLUMNS.length; i++) {
+        sb.append((i == 0) ? "" : ", ").append(expression(i, expressions, parameters));
+      }
+
+      sb.append(") ON CONFLICT (entityName, entityId, keyName) DO UPDATE SET ");
+
+      for(int i = VALUES; i < COLUMNS.length; i++) {
+        sb.append((i == VALUES) ? "" : ", ").append(COLUMNS[i]).append(" = EXCLUDED.").append(COLUMNS[i]);
+      }
+
+      sb.append(", version = ").append(TABLE).append(".version + 1");
+
+      return sb.append(" WHERE ").append(TABLE).append(".type = EXCLUDED.type").toString();
+    }
+  }
+
+  /**
+   * MySQL has no conditional update on duplicates, so every column keeps its value unless the type matches.
+   */
+  static class MySQLDialect extends UpsertDialect {
+    String sql(String[] expressions, List<Integer> parameters) {
+      StringBuilder sb = new StringBuilder("INSERT INTO ").append(TABLE).append(" (").append(columns(0)).append(") VALUES (");
+
+      for(int i = 0; i < COLUMNS.length; i++) {
+        sb.append((i == 0) ? "" : ", ").append(expression(i, expressions, parameters));
+      }
+
+      sb.append(") ON DUPLICATE KEY UPDATE ");
+
+      for(int i = VALUES; i < COLUMNS.length; i++) {
+        String column = COLUMNS[i];
+        sb.append((i == VALUES) ? "" : ", ").append(column).append(" = IF(type = VALUES(type), VALUES(").append(column).append("), ").append(column).append(')');
+      }
+
+      sb.append(", version = IF(type = VALUES(type), version + 1, version)");
+
+      return sb.toString();
+    }
+  }
+}
@@ -4,7 +4,6 @@
  */
 package com.opensymphony.module.propertyset.javabeans;
 
-import java.beans.*;
 import java.util.*;
 
 import com.opensymphony.module.propertyset.*;
@@ -13,6 +12,7 @@ import com.opensymphony.module.propertyset.*;
  * PropertySet wrapper for any javabean.
  * Dynamically looks up all bean properties (those exposed by get/setXXX) and invokes
  * them on the getXXX/setXXX propertyset methods.
+ * Introspection is done once per bean class, see {@link BeanMetadata}.
  * <p/>
  * <p/>
  * <b>Required Args</b>
@@ -27,32 +27,22 @@ import com.opensymphony.module.propertyset.*;
 public class BeanIntrospectorPropertySet extends AbstractPropertySet {
   //~ Instance fields ////////////////////////////////////////////////////////
 
-  private Map<String, PropertyDescriptor> descriptors = new HashMap<String, PropertyDescriptor>();
+  private BeanMetadata metadata;
   private Object bean = null;
 
   //~ Methods ////////////////////////////////////////////////////////////////
 
   public void setBean(Object bean) throws PropertyImplementationException {
+    this.metadata = BeanMetadata.forClass(bean.getClass());
     this.bean = bean;
-
-    try {
-      BeanInfo info = Introspector.getBeanInfo(bean.getClass());
-      PropertyDescriptor[] beanDescriptors = info.getPropertyDescriptors();
-
-      for(PropertyDescriptor beanDescriptor : beanDescriptors) {
-        descriptors.put(beanDescriptor.getName(), beanDescriptor);
-      }
-    } catch(IntrospectionException e) {
-      throw new PropertyImplementationException("Object is not a bean", e);
-    }
   }
 
   public Collection<String> getKeys(String prefix, int type) throws PropertyException {
     Collection<String> keys = new ArrayList<String>();
 
-    for(PropertyDescriptor descriptor : descriptors.values()) {
-      if(((prefix == null) || descriptor.getName().startsWith(prefix)) && ((type == 0) || (getType(descriptor.getName()) == type))) {
-        keys.add(descriptor.getName());
+    for(String key : metadata.getKeys()) {
+      if(((prefix == null) || key.startsWith(prefix)) && ((type == 0) || (metadata.getProperty(key).getType() == type))) {
+        keys.add(key);
       }
     }
 
@@ -60,50 +50,17 @@ public class BeanIntrospectorPropertySet extends AbstractPropertySet {
   }
 
   public boolean isSettable(String property) {
-    PropertyDescriptor descriptor = descriptors.get(property);
+    BeanMetadata.Property p = metadata.getProperty(property);
 
-    return (descriptor != null) && (descriptor.getWriteMethod() != null);
+    return (p != null) && (p.getWriteMethod() != null);
   }
 
   public int getType(String key) throws PropertyException {
-    PropertyDescriptor descriptor = descriptors.get(key);
-
-    if(descriptor == null) {
-      throw new PropertyException("No key " + key + " found");
-    }
-
-    Class c = descriptor.getPropertyType();
-
-    if((c == Integer.TYPE) || (c == Integer.class)) {
-      return PropertySet.INT;
-    }
-
-    if((c == Long.TYPE) || (c == Long.class)) {
-      return PropertySet.LONG;
-    }
-
-    if((c == Double.TYPE) || (c == Double.class)) {
-      return PropertySet.DOUBLE;
-    }
-
-    //XXX Shouldn't this be TEXT?
-    if(c == String.class) {
-      return PropertySet.STRING;
-    }
-
-    if((c == Boolean.TYPE) || (c == Boolean.class)) {
-      return PropertySet.BOOLEAN;
-    }
-
-    if(java.util.Date.class.isAssignableFrom(c)) {
-      return PropertySet.DATE;
-    }
-
-    return PropertySet.OBJECT;
+    return property(key).getType();
   }
 
   public boolean exists(String key) throws PropertyException {
-    return descriptors.get(key) != null;
+    return metadata.getProperty(key) != null;
   }
 
   public void init(Map<String, String> config, Map<String, Object> args) {
@@ -119,40 +76,41 @@ public class BeanIntrospectorPropertySet extends AbstractPropertySet {
     throw new PropertyImplementationException("Remove not supported in BeanIntrospectorPropertySet, use setXXX(null) instead");
   }
 
-  protected void setImpl(int type, String key, Object value) throws PropertyException {
-    if(getType(key) != type) {
-      throw new InvalidPropertyTypeException(key + " is not of type " + type);
+  public Object lookup(int type, String key) throws PropertyException {
+    if(metadata.getProperty(key) == null) {
+      return NOT_FOUND;
     }
 
-    PropertyDescriptor descriptor = descriptors.get(key);
+    return get(type, key);
+  }
 
-    try {
-      descriptor.getWriteMethod().invoke(bean, value);
-    }
-    //pretty lame way of doing this, but I'm lazy
-    catch(NullPointerException ex) {
-      throw new PropertyImplementationException("Property " + key + " is read-only");
-    } catch(Exception ex) {
-      throw new PropertyImplementationException("Cannot invoke write method for key " + key, ex);
+  protected void setImpl(int type, String key, Object value) throws PropertyException {
+    BeanMetadata.Property p = property(key);
+
+    if(p.getType() != type) {
+      throw new InvalidPropertyTypeException(key + " is not of type " + type);
     }
+
+    p.write(bean, value);
   }
 
   protected Object get(int type, String key) throws PropertyException {
-    if(getType(key) != type) {
+    BeanMetadata.Property p = property(key);
+
+    if(p.getType() != type) {
       throw new InvalidPropertyTypeException(key + " is not of type " + type);
     }
 
-    PropertyDescriptor descriptor = descriptors.get(key);
+    return p.read(bean);
+  }
 
-    try {
+  private BeanMetadata.Property property(String key) throws PropertyNotFoundException {
+    BeanMetadata.Property p = metadata.getProperty(key);
 
-      return descriptor.getReadMethod().invoke(bean);
-    }
-    //pretty lame way of doing this, but I'm lazy
-    catch(NullPointerException ex) {
-      throw new PropertyImplementationException("Property " + key + " is write-only");
-    } catch(Exception ex) {
-      throw new PropertyImplementationException("Cannot invoke read method for key " + key, ex);
+    if(p == null) {
+      throw new PropertyNotFoundException("No key " + key + " found");
     }
+
+    return p;
   }
 }
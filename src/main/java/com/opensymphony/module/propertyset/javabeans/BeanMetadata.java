@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) 2002-2003 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.module.propertyset.javabeans;
+
+import java.beans.*;
+import java.lang.ref.SoftReference;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.*;
+
+import com.opensymphony.module.propertyset.PropertyImplementationException;
+import com.opensymphony.module.propertyset.PropertySet;
+
+/**
+ * Introspection results for a bean class, computed once per class and shared by
+ * every {@link BeanIntrospectorPropertySet} wrapping an instance of it.
+ * <p/>
+ * The cache is keyed weakly by class and holds its values through soft references
+ * (the metadata refers to the class through its methods), so classes of redeployed
+ * classloaders can still be unloaded.
+ */
+public final class BeanMetadata {
+  //~ Static fields/initializers /////////////////////////////////////////////
+
+  private static final Map<Class, SoftReference<BeanMetadata>> CACHE = new WeakHashMap<Class, SoftReference<BeanMetadata>>();
+
+  //~ Instance fields ////////////////////////////////////////////////////////
+
+  private final Map<String, Property> properties;
+  private final List<String> keys;
+
+  //~ Constructors ///////////////////////////////////////////////////////////
+
+  private BeanMetadata(Class beanClass) throws IntrospectionException {
+    BeanInfo info = Introspector.getBeanInfo(beanClass);
+    PropertyDescriptor[] descriptors = info.getPropertyDescriptors();
+    Map<String, Property> properties = new HashMap<String, Property>(descriptors.length * 2);
+
+    for(PropertyDescriptor descriptor : descriptors) {
+      properties.put(descriptor.getName(), new Property(descriptor));
+    }
+
+    List<String> keys = new ArrayList<String>(properties.keySet());
+    Collections.sort(keys);
+
+    this.properties = properties;
+    this.keys = Collections.unmodifiableList(keys);
+  }
+
+  //~ Methods ////////////////////////////////////////////////////////////////
+
+  /**
+   * @return The metadata for the given class, introspecting it if it has not been seen before.
+   */
+  public static BeanMetadata forClass(Class beanClass) throws PropertyImplementationException {
+    synchronized(CACHE) {
+      SoftReference<BeanMetadata> ref = CACHE.get(beanClass);
+      BeanMetadata metadata = (ref == null) ? null : ref.get();
+
+      if(metadata != null) {
+        return metadata;
+      }
+    }
+
+    BeanMetadata metadata;
+
+    try {
+      metadata = new BeanMetadata(beanClass);
+    } catch(IntrospectionException e) {
+      throw new PropertyImplementationException("Object is not a bean", e);
+    }
+
+    synchronized(CACHE) {
+      CACHE.put(beanClass, new SoftReference<BeanMetadata>(metadata));
+    }
+
+    return metadata;
+  }
+
+  /**
+   * @return The property, or null if the bean has no such property.
+   */
+  public Property getProperty(String name) {
+    return properties.get(name);
+  }
+
+  /**
+   * @return All property names, sorted.
+   */
+  public List<String> getKeys() {
+    return keys;
+  }
+
+  //~ Inner Classes //////////////////////////////////////////////////////////
+
+  /**
+   * A single bean property, with accessors prepared once for the class: access checks
+   * are suppressed where the security manager allows it, and read calls share one
+   * empty argument array.
+   */
+  public static final class Property {
+    private static final Object[] NO_ARGS = new Object[0];
+
+    private final String name;
+    private final int type;
+    private final Method readMethod;
+    private final Method writeMethod;
+
+    Property(PropertyDescriptor descriptor) {
+      this.name = descriptor.getName();
+      this.type = type(descriptor.getPropertyType());
+      this.readMethod = accessible(descriptor.getReadMethod());
+      this.writeMethod = accessible(descriptor.getWriteMethod());
+    }
+
+    /**
+     * Invoke the read method on a bean.
+     */
+    public Object read(Object bean) throws PropertyImplementationException {
+      if(readMethod == null) {
+        throw new PropertyImplementationException("Property " + name + " is write-only");
+      }
+
+      try {
+        return readMethod.invoke(bean, NO_ARGS);
+      } catch(InvocationTargetException ex) {
+        throw new PropertyImplementationException("Read method for key " + name + " failed", ex.getCause());
+      } catch(Exception ex) {
+        throw new PropertyImplementationException("Cannot invoke read method for key " + name, ex);
+      }
+    }
+
+    /**
+     * Invoke the write method on a bean.
+     */
+    public void write(Object bean, Object value) throws PropertyImplementationException {
+      if(writeMethod == null) {
+        throw new PropertyImplementationException("Property " + name + " is read-only");
+      }
+
+      try {
+        writeMethod.invoke(bean, value);
+      } catch(InvocationTargetException ex) {
+        throw new PropertyImplementationException("Write method for key " + name + " failed", ex.getCause());
+      } catch(Exception ex) {
+        throw new PropertyImplementationException("Cannot invoke write method for key " + name, ex);
+      }
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    /**
+     * @return The PropertySet type code of this property.
+     */
+    public int getType() {
+      return type;
+    }
+
+    public Method getReadMethod() {
+      return readMethod;
+    }
+
+    public Method getWriteMethod() {
+      return writeMethod;
+    }
+
+    private static Method accessible(Method method) {
+      if(method != null) {
+        try {
+          method.setAccessible(true);
+        } catch(SecurityException e) {
+          //fall back to checked access
+        }
+      }
+
+      return method;
+    }
+
+    private static int type(Class c) {
+      if(c == null) {
+        //indexed property without a plain accessor
+        return PropertySet.OBJECT;
+      }
+
+      if((c == Integer.TYPE) || (c == Integer.class)) {
+        return PropertySet.INT;
+      }
+
+      if((c == Long.TYPE) || (c == Long.class)) {
+        return PropertySet.LONG;
+      }
+
+      if((c == Double.TYPE) || (c == Double.class)) {
+        return PropertySet.DOUBLE;
+      }
+
+      //XXX Shouldn't this be TEXT?
+      if(c == String.class) {
+        return PropertySet.STRING;
+      }
+
+      if((c == Boolean.TYPE) || (c == Boolean.class)) {
+        return PropertySet.BOOLEAN;
+      }
+
+      if(java.util.Date.class.isAssignableFrom(c)) {
+        return PropertySet.DATE;
+      }
+
+      return PropertySet.OBJECT;
+    }
+  }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2002-2003 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.module.propertyset.javabeans;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import com.opensymphony.module.propertyset.PropertyImplementationException;
+import com.opensymphony.module.propertyset.PropertySet;
+
+/**
+ * Locates the adapters generated by {@link PropertySetBeanProcessor}.
+ * Lookups are remembered per bean class; both keys and values are held weakly
+ * so that redeployed classloaders can be unloaded.
+ */
+public final class PropertySetAdapters {
+  //~ Static fields/initializers /////////////////////////////////////////////
+
+  private static final WeakReference<Class<?>> NONE = new WeakReference<Class<?>>(null);
+  private static final Map<Class<?>, WeakReference<Class<?>>> CACHE = new WeakHashMap<Class<?>, WeakReference<Class<?>>>();
+
+  //~ Constructors ///////////////////////////////////////////////////////////
+
+  private PropertySetAdapters() {
+  }
+
+  //~ Methods ////////////////////////////////////////////////////////////////
+
+  /**
+   * @return The name of the adapter generated for a bean class.
+   */
+  public static String adapterName(String binaryName) {
+    int dot = binaryName.lastIndexOf('.');
+
+    return binaryName.substring(0, dot + 1) + binaryName.substring(dot + 1).replace('$', '_') + "_PropertySet";
+  }
+
+  /**
+   * @return The generated adapter class for a bean class, or null if it has none.
+   */
+  public static Class<?> getAdapterClass(Class<?> beanClass) {
+    if(!beanClass.isAnnotationPresent(PropertySetBean.class)) {
+      return null;
+    }
+
+    synchronized(CACHE) {
+      WeakReference<Class<?>> ref = CACHE.get(beanClass);
+
+      if(ref == NONE) {
+        return null;
+      }
+
+      if((ref != null) && (ref.get() != null)) {
+        return ref.get();
+      }
+    }
+
+    Class<?> adapter;
+
+    try {
+      adapter = Class.forName(adapterName(beanClass.getName()), true, beanClass.getClassLoader());
+
+      if(!PropertySet.class.isAssignableFrom(adapter)) {
+        adapter = null;
+      }
+    } catch(ClassNotFoundException e) {
+      //annotated, but the processor did not run
+      adapter = null;
+    }
+
+    synchronized(CACHE) {
+      CACHE.put(beanClass, (adapter == null) ? NONE : new WeakReference<Class<?>>(adapter));
+    }
+
+    return adapter;
+  }
+
+  /**
+   * Create a generated adapter for a bean. The adapter still needs to be initialised
+   * with the bean through <code>init</code>.
+   *
+   * @return The adapter, or null if the bean's class has none.
+   */
+  public static PropertySet create(Object bean) throws PropertyImplementationException {
+    if(bean == null) {
+      return null;
+    }
+
+    Class<?> adapter = getAdapterClass(bean.getClass());
+
+    if(adapter == null) {
+      return null;
+    }
+
+    try {
+      return (PropertySet)adapter.newInstance();
+    } catch(InstantiationException e) {
+      throw new PropertyImplementationException("Cannot create " + adapter.getName(), e);
+    } catch(IllegalAccessException e) {
+      throw new PropertyImplementationException("Cannot create " + adapter.getName(), e);
+    }
+  }
+}
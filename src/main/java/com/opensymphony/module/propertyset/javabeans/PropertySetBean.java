@@ -0,0 +1,22 @@
+/*
+ * Copyright (c) 2002-2003 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.module.propertyset.javabeans;
+
+import java.lang.annotation.*;
+
+/**
+ * Marks a bean class for which {@link PropertySetBeanProcessor} should generate a
+ * PropertySet adapter at compile time. The adapter is named after the bean's binary
+ * name, with <code>$</code> replaced by <code>_</code> and <code>_PropertySet</code>
+ * appended (so <code>com.acme.User</code> gets <code>com.acme.User_PropertySet</code>).
+ * <p/>
+ * {@link com.opensymphony.module.propertyset.PropertySetManager} hands out the generated
+ * adapter instead of a {@link BeanIntrospectorPropertySet} when one is present.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface PropertySetBean {
+}
@@ -0,0 +1,465 @@
+/*
+ * Copyright (c) 2002-2003 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.module.propertyset.javabeans;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.*;
+import javax.annotation.processing.*;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.*;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+
+import com.opensymphony.module.propertyset.PropertySet;
+
+/**
+ * Annotation processor generating a PropertySet adapter for every class marked with
+ * {@link PropertySetBean}.
+ * <p/>
+ * The adapter extends {@link BeanIntrospectorPropertySet} and exposes the same properties
+ * as it would, but overrides every lookup to resolve keys with a switch on their hash code
+ * and call the getters and setters directly, so there is no introspection or reflection
+ * at runtime.
+ * <p/>
+ * The processor is registered through <code>META-INF/services</code>, so it runs
+ * whenever propertyset is on the compiler's classpath.
+ */
+@SupportedAnnotationTypes("com.opensymphony.module.propertyset.javabeans.PropertySetBean")
+public class PropertySetBeanProcessor extends AbstractProcessor {
+  //~ Methods ////////////////////////////////////////////////////////////////
+
+  public SourceVersion getSupportedSourceVersion() {
+    return SourceVersion.latestSupported();
+  }
+
+  public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+    for(TypeElement annotation : annotations) {
+      for(Element element : roundEnv.getElementsAnnotatedWith(annotation)) {
+        if(element.getKind() != ElementKind.CLASS) {
+          processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "@PropertySetBean only applies to classes", element);
+
+          continue;
+        }
+
+        try {
+          generate((TypeElement)element);
+        } catch(IOException e) {
+          processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Cannot generate PropertySet adapter: " + e, element);
+        }
+      }
+    }
+
+    return true;
+  }
+
+  private void generate(TypeElement bean) throws IOException {
+    Elements elements = processingEnv.getElementUtils();
+    String binaryName = elements.getBinaryName(bean).toString();
+    String adapterName = PropertySetAdapters.adapterName(binaryName);
+    String packageName = elements.getPackageOf(bean).getQualifiedName().toString();
+    String simpleName = adapterName.substring(adapterName.lastIndexOf('.') + 1);
+    String beanType = bean.getQualifiedName().toString();
+    List<Property> properties = properties(bean);
+
+    JavaFileObject file = processingEnv.getFiler().createSourceFile(adapterName, bean);
+    PrintWriter out = new PrintWriter(file.openWriter());
+
+    try {
+      if(packageName.length() > 0) {
+        out.println("package " + packageName + ";");
+        out.println();
+      }
+
+      //single-type imports, so that classes in the bean's package cannot shadow them
+      for(String imported : new String[]{"java.util.ArrayList", "java.util.Arrays", "java.util.Collection", "java.util.Collections", "java.util.List", "java.util.Map", null, "com.opensymphony.module.propertyset.InvalidPropertyTypeException", "com.opensymphony.module.propertyset.PropertyImplementationException", "com.opensymphony.module.propertyset.PropertyNotFoundException", "com.opensymphony.module.propertyset.javabeans.BeanIntrospectorPropertySet"}) {
+        out.println((imported == null) ? "" : "import " + imported + ";");
+      }
+
+      out.println();
+      out.println("/**");
+      out.println(" * PropertySet adapter for {@link " + beanType + "}.");
+      out.println(" * Generated by " + getClass().getName() + ", do not edit.");
+      out.println(" */");
+      out.println("public class " + simpleName + " extends BeanIntrospectorPropertySet {");
+      out.println("  private static final List<String> KEYS = Collections.unmodifiableList(Arrays.asList(new String[]{" + keyList(properties) + "}));");
+      out.println("  private static final int[] TYPES = {" + typeList(properties) + "};");
+      out.println();
+      out.println("  private " + beanType + " bean;");
+      out.println();
+      out.println("  public " + simpleName + "() {");
+      out.println("  }");
+      out.println();
+      out.println("  public " + simpleName + "(" + beanType + " bean) {");
+      out.println("    this.bean = bean;");
+      out.println("  }");
+      out.println();
+      out.println("  public void setBean(Object bean) {");
+      out.println("    this.bean = (" + beanType + ")bean;");
+      out.println("  }");
+      out.println();
+      out.println("  public Object getBean() {");
+      out.println("    return bean;");
+      out.println("  }");
+      out.println();
+      out.println("  public void init(Map<String, String> config, Map<String, Object> args) {");
+      out.println("    setBean(args.get(\"bean\"));");
+      out.println("  }");
+      out.println();
+      out.println("  public Collection<String> getKeys(String prefix, int type) {");
+      out.println("    List<String> keys = new ArrayList<String>();");
+      out.println();
+      out.println("    for(int i = 0; i < TYPES.length; i++) {");
+      out.println("      String key = KEYS.get(i);");
+      out.println();
+      out.println("      if(((prefix == null) || key.startsWith(prefix)) && ((type == 0) || (TYPES[i] == type))) {");
+      out.println("        keys.add(key);");
+      out.println("      }");
+      out.println("    }");
+      out.println();
+      out.println("    return keys;");
+      out.println("  }");
+      out.println();
+      out.println("  public int getType(String key) {");
+      out.println("    return TYPES[index(key)];");
+      out.println("  }");
+      out.println();
+      out.println("  public boolean exists(String key) {");
+      out.println("    return find(key) >= 0;");
+      out.println("  }");
+      out.println();
+      out.println("  public boolean isSettable(String key) {");
+      out.println("    switch(find(key)) {");
+
+      boolean settable = false;
+
+      for(int i = 0; i < properties.size(); i++) {
+        if(properties.get(i).setter != null) {
+          out.println("      case " + i + ":");
+          settable = true;
+        }
+      }
+
+      if(settable) {
+        out.println("        return true;");
+        out.println();
+      }
+
+      out.println("      default:");
+      out.println("        return false;");
+      out.println("    }");
+      out.println("  }");
+      out.println();
+      out.println("  public void remove() {");
+      out.println("    //no-op, doesn't make sense to remove bean properties");
+      out.println("  }");
+      out.println();
+      out.println("  public void remove(String key) {");
+      out.println("    throw new PropertyImplementationException(\"Remove not supported in " + simpleName + ", use setXXX(null) instead\");");
+      out.println("  }");
+      out.println();
+      out.println("  public Object lookup(int type, String key) {");
+      out.println("    int i = find(key);");
+      out.println();
+      out.println("    return (i < 0) ? NOT_FOUND : get(i, type, key);");
+      out.println("  }");
+      out.println();
+      out.println("  protected Object get(int type, String key) {");
+      out.println("    return get(index(key), type, key);");
+      out.println("  }");
+      out.println();
+      out.println("  protected void setImpl(int type, String key, Object value) {");
+      out.println("    int i = index(key);");
+      out.println();
+      out.println("    if(TYPES[i] != type) {");
+      out.println("      throw new InvalidPropertyTypeException(key + \" is not of type \" + type);");
+      out.println("    }");
+      out.println();
+      out.println("    switch(i) {");
+
+      for(int i = 0; i < properties.size(); i++) {
+        Property p = properties.get(i);
+
+        if(p.setter != null) {
+          out.println("      case " + i + ":");
+          out.println("        bean." + p.setter + "((" + p.castType + ")value);");
+          out.println();
+          out.println("        return;");
+          out.println();
+        }
+      }
+
+      out.println("      default:");
+      out.println("        throw new PropertyImplementationException(\"Property \" + key + \" is read-only\");");
+      out.println("    }");
+      out.println("  }");
+      out.println();
+      out.println("  private Object get(int i, int type, String key) {");
+      out.println("    if(TYPES[i] != type) {");
+      out.println("      throw new InvalidPropertyTypeException(key + \" is not of type \" + type);");
+      out.println("    }");
+      out.println();
+      out.println("    switch(i) {");
+
+      for(int i = 0; i < properties.size(); i++) {
+        Property p = properties.get(i);
+
+        if(p.getter != null) {
+          out.println("      case " + i + ":");
+          out.println("        return bean." + p.getter + "();");
+          out.println();
+        }
+      }
+
+      out.println("      default:");
+      out.println("        throw new PropertyImplementationException(\"Property \" + key + \" is write-only\");");
+      out.println("    }");
+      out.println("  }");
+      out.println();
+      out.println("  private static int index(String key) {");
+      out.println("    int i = find(key);");
+      out.println();
+      out.println("    if(i < 0) {");
+      out.println("      throw new PropertyNotFoundException(\"No key \" + key + \" found\");");
+      out.println("    }");
+      out.println();
+      out.println("    return i;");
+      out.println("  }");
+      out.println();
+      out.println("  private static int find(String key) {");
+      out.println("    switch(key.hashCode()) {");
+
+      Map<Integer, List<Integer>> byHash = new TreeMap<Integer, List<Integer>>();
+
+      for(int i = 0; i < properties.size(); i++) {
+        int hash = properties.get(i).name.hashCode();
+        List<Integer> bucket = byHash.get(hash);
+
+        if(bucket == null) {
+          bucket = new ArrayList<Integer>();
+          byHash.put(hash, bucket);
+        }
+
+        bucket.add(i);
+      }
+
+      for(Map.Entry<Integer, List<Integer>> entry : byHash.entrySet()) {
+        out.println("      case " + entry.getKey() + ":");
+
+        for(int i : entry.getValue()) {
+          out.println("        if(key.equals(\"" + properties.get(i).name + "\")) {");
+          out.println("          return " + i + ";");
+          out.println("        }");
+          out.println();
+        }
+
+        out.println("        break;");
+        out.println();
+      }
+
+      out.println("    }");
+      out.println();
+      out.println("    return -1;");
+      out.println("  }");
+      out.println("}");
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Collect the bean properties the same way {@link java.beans.Introspector} would:
+   * public, non-static <code>getX()</code>/<code>isX()</code> readers and <code>setX(value)</code> writers.
+   * The reader decides the type of a property, and only writers taking that type are used.
+   */
+  private List<Property> properties(TypeElement bean) {
+    Elements elements = processingEnv.getElementUtils();
+    Types types = processingEnv.getTypeUtils();
+    Map<String, Property> properties = new TreeMap<String, Property>();
+    List<ExecutableElement> setters = new ArrayList<ExecutableElement>();
+
+    for(ExecutableElement method : ElementFilter.methodsIn(elements.getAllMembers(bean))) {
+      Set<Modifier> modifiers = method.getModifiers();
+
+      if(!modifiers.contains(Modifier.PUBLIC) || modifiers.contains(Modifier.STATIC)) {
+        continue;
+      }
+
+      String methodName = method.getSimpleName().toString();
+      List<? extends VariableElement> parameters = method.getParameters();
+      TypeMirror returnType = method.getReturnType();
+
+      if(parameters.isEmpty() && (returnType.getKind() != TypeKind.VOID)) {
+        String name = null;
+
+        if(methodName.startsWith("get") && (methodName.length() > 3)) {
+          name = decapitalize(methodName.substring(3));
+        } else if(methodName.startsWith("is") && (methodName.length() > 2) && (returnType.getKind() == TypeKind.BOOLEAN)) {
+          name = decapitalize(methodName.substring(2));
+        }
+
+        if(name != null) {
+          Property p = property(properties, name, returnType, types);
+
+          //prefer isX over getX for booleans, as the Introspector does
+          if(sameType(returnType, p.type, types) && ((p.getter == null) || methodName.startsWith("is"))) {
+            p.getter = methodName;
+          }
+        }
+      } else if((parameters.size() == 1) && (returnType.getKind() == TypeKind.VOID) && methodName.startsWith("set") && (methodName.length() > 3)) {
+        setters.add(method);
+      }
+    }
+
+    //after all readers, so that overloaded writers cannot decide the type
+    for(ExecutableElement method : setters) {
+      String methodName = method.getSimpleName().toString();
+      TypeMirror parameterType = method.getParameters().get(0).asType();
+      Property p = property(properties, decapitalize(methodName.substring(3)), parameterType, types);
+
+      if(sameType(parameterType, p.type, types)) {
+        p.setter = methodName;
+      }
+    }
+
+    return new ArrayList<Property>(properties.values());
+  }
+
+  private static boolean sameType(TypeMirror a, TypeMirror b, Types types) {
+    return types.isSameType(types.erasure(a), types.erasure(b));
+  }
+
+  private Property property(Map<String, Property> properties, String name, TypeMirror type, Types types) {
+    Property p = properties.get(name);
+
+    if(p == null) {
+      p = new Property(name, type, typeCode(type, types), castType(type, types));
+      properties.put(name, p);
+    }
+
+    return p;
+  }
+
+  private int typeCode(TypeMirror type, Types types) {
+    switch(type.getKind()) {
+      case INT:
+        return PropertySet.INT;
+
+      case LONG:
+        return PropertySet.LONG;
+
+      case DOUBLE:
+        return PropertySet.DOUBLE;
+
+      case BOOLEAN:
+        return PropertySet.BOOLEAN;
+
+      case DECLARED:
+
+        String name = types.erasure(type).toString();
+
+        if(name.equals("java.lang.Integer")) {
+          return PropertySet.INT;
+        }
+
+        if(name.equals("java.lang.Long")) {
+          return PropertySet.LONG;
+        }
+
+        if(name.equals("java.lang.Double")) {
+          return PropertySet.DOUBLE;
+        }
+
+        if(name.equals("java.lang.String")) {
+          return PropertySet.STRING;
+        }
+
+        if(name.equals("java.lang.Boolean")) {
+          return PropertySet.BOOLEAN;
+        }
+
+        TypeElement date = processingEnv.getElementUtils().getTypeElement("java.util.Date");
+
+        if(types.isAssignable(type, date.asType())) {
+          return PropertySet.DATE;
+        }
+
+        return PropertySet.OBJECT;
+
+      default:
+        return PropertySet.OBJECT;
+    }
+  }
+
+  private static String castType(TypeMirror type, Types types) {
+    if(type.getKind().isPrimitive()) {
+      return types.boxedClass((javax.lang.model.type.PrimitiveType)type).getQualifiedName().toString();
+    }
+
+    return types.erasure(type).toString();
+  }
+
+  /**
+   * Same rules as {@link java.beans.Introspector#decapitalize(String)}.
+   */
+  private static String decapitalize(String name) {
+    if((name.length() > 1) && Character.isUpperCase(name.charAt(1)) && Character.isUpperCase(name.charAt(0))) {
+      return name;
+    }
+
+    return Character.toLowerCase(name.charAt(0)) + name.substring(1);
+  }
+
+  private static String keyList(List<Property> properties) {
+    StringBuilder result = new StringBuilder();
+
+    for(Property p : properties) {
+      if(result.length() > 0) {
+        result.append(", ");
+      }
+
+      result.append('"').append(p.name).append('"');
+    }
+
+    return result.toString();
+  }
+
+  private static String typeList(List<Property> properties) {
+    StringBuilder result = new StringBuilder();
+
+    for(Property p : properties) {
+      if(result.length() > 0) {
+        result.append(", ");
+      }
+
+      result.append(p.typeCode);
+    }
+
+    return result.toString();
+  }
+
+  //~ Inner Classes //////////////////////////////////////////////////////////
+
+  private static final class Property {
+    final String name;
+    final TypeMirror type;
+    final int typeCode;
+    final String castType;
+    String getter;
+    String setter;
+
+    Property(String name, TypeMirror type, int typeCode, String castType) {
+      this.name = name;
+      this.type = type;
+      this.typeCode = typeCode;
+      this.castType = castType;
+    }
+  }
+}
@@ -0,0 +1,876 @@
+/*
+ * Copyright (c) 2002-2003 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.module.propertyset.jdbc;
+
+import java.io.StringReader;
+import java.sql.*;
+import java.util.*;
+import java.util.Date;
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+import javax.sql.DataSource;
+
+import com.opensymphony.module.propertyset.*;
+
+/**
+ * Plain JDBC propertyset over the same <code>OS_PROPERTIES</code> table used by the ejb3 implementation,
+ * without going through JPA. Each type is read from and written to its own column directly.
+ * <p/>
+ * Configuration (from propertyset.xml):
+ * <ul>
+ * <li><code>datasource</code>: JNDI name of the DataSource, unless one is passed in the args.
+ * <li><code>table</code>: Optional, name of the table. Defaults to OS_PROPERTIES.
+ * <li><code>statementCacheSize</code>: Optional, number of prepared statements kept open per held connection. Defaults to 32.
+ * <li><code>batchSize</code>: Optional, number of writes sent as one JDBC batch between {@link #beginBatch()}
+ * and {@link #endBatch()}. Defaults to 100.
+ * </ul>
+ * Args:
+ * <ul>
+ * <li><code>entityName</code>, <code>entityId</code>: The entity the properties belong to.
+ * <li><code>datasource</code>: Optional DataSource to use instead of the JNDI lookup.
+ * <li><code>connection</code>: Optional Connection to hold on to for the life of the set, instead of
+ * borrowing one from the DataSource per call. The set then must not be shared between threads, and
+ * the caller remains responsible for closing it and committing anything written outside of a batch.
+ * </ul>
+ * Prepared statements are cached on held connections, that is the <code>connection</code> arg or the one used
+ * for a batch. Connections borrowed per call prepare the same SQL strings every time, so that pools
+ * with statement caching enabled can reuse them.
+ * <p/>
+ * As with the ejb3 implementation, prefix listings and key paging are key ranges, which require a binary collation
+ * on <code>keyName</code> so that the database orders keys the way {@link String#compareTo(String)} does.
+ */
+public class JDBCPropertySet extends AbstractPropertySet implements BatchWriter {
+  //~ Static fields/initializers /////////////////////////////////////////////
+
+  private static final int PREFIX = 1;
+  private static final int TYPE = 2;
+  private static final int AFTER = 4;
+  private static final int BEFORE = 8;
+
+  private static final String[] COLUMNS = new String[PropertySet.DATE + 1];
+
+  static {
+    COLUMNS[BOOLEAN] = "boolValue";
+    COLUMNS[INT] = "intValue";
+    COLUMNS[LONG] = "longValue";
+    COLUMNS[DOUBLE] = "doubleValue";
+    COLUMNS[STRING] = "stringValue";
+    COLUMNS[TEXT] = "textValue";
+    COLUMNS[DATE] = "dateValue";
+  }
+
+  //~ Instance fields ////////////////////////////////////////////////////////
+
+  private DataSource dataSource;
+  private String entityName;
+  private long entityId;
+  private int statementCacheSize = 32;
+  private int batchSize = 100;
+
+  //connection held for the life of the set or the current batch, with its statements
+  private Connection held;
+  private boolean ownsHeld;
+  private boolean heldAutoCommit;
+  private Map<String, PreparedStatement> statements;
+
+  //stored type per key while batching, and the number of writes not yet executed
+  private Map<String, Integer> batchTypes;
+  private int batched;
+
+  private String selectType;
+  private String[] selectValue;
+  private String[] update;
+  private String insert;
+  private String deleteKey;
+  private String deleteAll;
+  //key listings, indexed by a combination of the PREFIX, TYPE, AFTER and BEFORE bits
+  private String[] keys;
+  private String types;
+  //all columns, optionally restricted to a prefix, indexed by the PREFIX and BEFORE bits
+  private String[] entries;
+
+  //~ Methods ////////////////////////////////////////////////////////////////
+
+  public Collection<String> getKeys(String prefix, int type) throws PropertyException {
+    return getKeys(prefix, type, null, 0);
+  }
+
+  /**
+   * Page through keys with a <code>keyName &gt; after</code> predicate, so that each page starts with an index seek.
+   * A prefix is matched as a key range rather than with LIKE, so that <code>_</code> and <code>%</code> in it are literal.
+   */
+  public List<String> getKeys(String prefix, int type, String after, int limit) throws PropertyException {
+    String to = (prefix == null) ? null : prefixEnd(prefix);
+    int variant = ((prefix == null) ? 0 : PREFIX) | ((to == null) ? 0 : BEFORE) | ((type == 0) ? 0 : TYPE) | ((after == null) ? 0 : AFTER);
+    Connection c = null;
+    PreparedStatement ps = null;
+    ResultSet rs = null;
+
+    try {
+      c = acquire();
+      ps = prepare(c, keys[variant]);
+
+      int i = bindEntity(ps);
+
+      if(prefix != null) {
+        ps.setString(i++, prefix);
+      }
+
+      if(to != null) {
+        ps.setString(i++, to);
+      }
+
+      if(type != 0) {
+        ps.setInt(i++, type);
+      }
+
+      if(after != null) {
+        ps.setString(i, after);
+      }
+
+      ps.setMaxRows(limit);
+      rs = ps.executeQuery();
+
+      List<String> result = new ArrayList<String>();
+
+      while(rs.next()) {
+        result.add(rs.getString(1));
+      }
+
+      return result;
+    } catch(SQLException e) {
+      throw new PropertyImplementationException("Cannot list keys of " + this, e);
+    } finally {
+      release(c, ps, rs);
+    }
+  }
+
+  /**
+   * Returns a cursor fetching pages through {@link #getKeys(String, int, String, int)}.
+   */
+  public Cursor iterateKeys(String prefix, int type, int fetchSize) throws PropertyException {
+    return new PagedCursor(this, prefix, type, fetchSize);
+  }
+
+  /**
+   * Read all properties with a single query, the value of each from the column for its type.
+   * Rows of types this set does not support are skipped.
+   */
+  public void visitEntries(String prefix, Visitor visitor) throws PropertyException {
+    Connection c = null;
+    PreparedStatement ps = null;
+    ResultSet rs = null;
+
+    try {
+      c = acquire();
+      String to = (prefix == null) ? null : prefixEnd(prefix);
+      ps = prepare(c, entries[((prefix == null) ? 0 : PREFIX) | ((to == null) ? 0 : BEFORE)]);
+
+      int i = bindEntity(ps);
+
+      if(prefix != null) {
+        ps.setString(i++, prefix);
+      }
+
+      if(to != null) {
+        ps.setString(i, to);
+      }
+
+      rs = ps.executeQuery();
+
+      while(rs.next()) {
+        int type = rs.getInt(2);
+
+        //value columns follow the key and type in order of their type constants
+        if(supportsType(type) && !visitor.visit(rs.getString(1), type, read(rs, 2 + type, type))) {
+          break;
+        }
+      }
+    } catch(SQLException e) {
+      throw new PropertyImplementationException("Cannot read properties of " + this, e);
+    } finally {
+      release(c, ps, rs);
+    }
+  }
+
+  public int getType(String key) throws PropertyException {
+    Connection c = null;
+
+    try {
+      c = acquire();
+
+      return type(c, key);
+    } catch(SQLException e) {
+      throw new PropertyImplementationException("Cannot read type of " + key, e);
+    } finally {
+      release(c, null, null);
+    }
+  }
+
+  public boolean exists(String key) throws PropertyException {
+    return getType(key) != 0;
+  }
+
+  public void init(Map<String, String> config, Map<String, Object> args) {
+    entityName = (String)args.get("entityName");
+
+    Number id = (Number)args.get("entityId");
+
+    if((entityName == null) || (id == null)) {
+      throw new IllegalArgumentException("entityName and entityId are required");
+    }
+
+    entityId = id.longValue();
+    held = (Connection)args.get("connection");
+    dataSource = (DataSource)args.get("datasource");
+
+    if((dataSource == null) && (held == null)) {
+      String jndiName = config.get("datasource");
+
+      if(jndiName == null) {
+        throw new IllegalArgumentException("no datasource specified");
+      }
+
+      try {
+        dataSource = (DataSource)new InitialContext().lookup(jndiName);
+      } catch(NamingException e) {
+        throw new PropertyImplementationException("Cannot look up datasource " + jndiName, e);
+      }
+    }
+
+    if(config.get("statementCacheSize") != null) {
+      statementCacheSize = Integer.parseInt(config.get("statementCacheSize"));
+    }
+
+    if(config.get("batchSize") != null) {
+      batchSize = Integer.parseInt(config.get("batchSize"));
+    }
+
+    String table = config.get("table");
+
+    if(table == null) {
+      table = "OS_PROPERTIES";
+    }
+
+    String where = " WHERE entityName = ? AND entityId = ?";
+    String whereKey = where + " AND keyName = ?";
+
+    selectType = "SELECT type FROM " + table + whereKey;
+    selectValue = new String[COLUMNS.length];
+    update = new String[COLUMNS.length];
+
+    for(int type = 0; type < COLUMNS.length; type++) {
+      if(COLUMNS[type] != null) {
+        selectValue[type] = "SELECT type, " + COLUMNS[type] + " FROM " + table + whereKey;
+        //bump the version the ejb3 implementation checks for optimistic locking
+        update[type] = "UPDATE " + table + " SET " + COLUMNS[type] + " = ?, version = version + 1" + whereKey + " AND type = ?";
+      }
+    }
+
+    insert = "INSERT INTO " + table + " (entityName, entityId, keyName, type, boolValue, intValue, longValue, doubleValue, stringValue, textValue, dateValue, version) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, 0)";
+    deleteKey = "DELETE FROM " + table + whereKey;
+    deleteAll = "DELETE FROM " + table + where;
+    keys = new String[(PREFIX | TYPE | AFTER | BEFORE) + 1];
+
+    for(int variant = 0; variant < keys.length; variant++) {
+      keys[variant] = "SELECT keyName FROM " + table + where + range(variant) + (((variant & TYPE) == 0) ? "" : " AND type = ?") + (((variant & AFTER) == 0) ? "" : " AND keyName > ?") + " ORDER BY keyName";
+    }
+    types = "SELECT keyName, type FROM " + table + where;
+    entries = new String[(PREFIX | BEFORE) + 1];
+
+    for(int variant = 0; variant < entries.length; variant++) {
+      entries[variant] = "SELECT keyName, type, boolValue, intValue, longValue, doubleValue, stringValue, textValue, dateValue FROM " + table + where + range(variant);
+    }
+
+    if(held != null) {
+      heldAutoCommit = true;
+      statements = statementCache();
+    }
+  }
+
+  public void remove(String key) throws PropertyException {
+    execute(deleteKey, key);
+
+    if(batchTypes != null) {
+      batchTypes.remove(key);
+    }
+  }
+
+  public void remove() throws PropertyException {
+    execute(deleteAll, null);
+
+    if(batchTypes != null) {
+      batchTypes.clear();
+    }
+  }
+
+  public boolean supportsType(int type) {
+    return (type < COLUMNS.length) && (COLUMNS[type] != null);
+  }
+
+  public Object lookup(int type, String key) throws PropertyException {
+    String sql = (type < selectValue.length) ? selectValue[type] : null;
+
+    if(sql == null) {
+      throw new PropertyException("type " + type(type) + " not supported");
+    }
+
+    Connection c = null;
+    PreparedStatement ps = null;
+    ResultSet rs = null;
+
+    try {
+      c = acquire();
+      ps = prepare(c, sql);
+      bindKey(ps, key);
+      rs = ps.executeQuery();
+
+      if(!rs.next()) {
+        return NOT_FOUND;
+      }
+
+      int stored = rs.getInt(1);
+
+      if(stored != type) {
+        throw new InvalidPropertyTypeException("key '" + key + "' does not have matching type of " + type(type) + ", but is of type " + type(stored));
+      }
+
+      return read(rs, 2, type);
+    } catch(SQLException e) {
+      throw new PropertyImplementationException("Cannot read " + key, e);
+    } finally {
+      release(c, ps, rs);
+    }
+  }
+
+  /**
+   * Hold a single connection with auto-commit off until {@link #endBatch()}, and send writes as
+   * JDBC batches of <code>batchSize</code> statements.
+   */
+  public void beginBatch() throws PropertyException {
+    if(batchTypes != null) {
+      throw new IllegalStateException("Batch already in progress for " + this);
+    }
+
+    try {
+      if(held == null) {
+        held = dataSource.getConnection();
+        ownsHeld = true;
+        statements = statementCache();
+      }
+
+      heldAutoCommit = held.getAutoCommit();
+      held.setAutoCommit(false);
+
+      PreparedStatement ps = prepare(held, types);
+      ResultSet rs = null;
+      Map<String, Integer> existing = new HashMap<String, Integer>();
+
+      try {
+        bindEntity(ps);
+        rs = ps.executeQuery();
+
+        while(rs.next()) {
+          existing.put(rs.getString(1), rs.getInt(2));
+        }
+      } finally {
+        close(rs);
+      }
+
+      batchTypes = existing;
+      batched = 0;
+    } catch(SQLException e) {
+      endBatchState();
+      throw new PropertyImplementationException("Cannot start batch for " + this, e);
+    }
+  }
+
+  public void endBatch() throws PropertyException {
+    if(batchTypes == null) {
+      throw new IllegalStateException("No batch in progress for " + this);
+    }
+
+    try {
+      flushBatch();
+      held.commit();
+    } catch(SQLException e) {
+      rollback();
+      throw new PropertyImplementationException("Cannot complete batch for " + this, e);
+    } finally {
+      endBatchState();
+    }
+  }
+
+  public void abortBatch() throws PropertyException {
+    if(batchTypes == null) {
+      return;
+    }
+
+    try {
+      rollback();
+    } finally {
+      endBatchState();
+    }
+  }
+
+  public String toString() {
+    return "JDBCPropertySet{entityName='" + entityName + "', entityId=" + entityId + '}';
+  }
+
+  protected Object get(int type, String key) throws PropertyException {
+    Object value = lookup(type, key);
+
+    return (value == NOT_FOUND) ? null : value;
+  }
+
+  protected void setImpl(int type, String key, Object value) throws PropertyException {
+    if(!supportsType(type)) {
+      throw new PropertyException("type " + type(type) + " not supported");
+    }
+
+    if(batchTypes != null) {
+      batch(type, key, value);
+
+      return;
+    }
+
+    Connection c = null;
+
+    try {
+      c = acquire();
+
+      if(update(c, type, key, value) > 0) {
+        return;
+      }
+
+      checkType(c, type, key);
+
+      //some databases (PostgreSQL) abort the whole transaction on a failed statement, so the retry needs a savepoint
+      Savepoint savepoint = savepoint(c);
+
+      try {
+        insert(c, type, key, value);
+      } catch(SQLException e) {
+        //lost a race with another writer inserting the same key
+        if(!isDuplicateKey(e)) {
+          throw e;
+        }
+
+        if(savepoint != null) {
+          c.rollback(savepoint);
+        }
+
+        if(update(c, type, key, value) == 0) {
+          throw e;
+        }
+      } finally {
+        release(c, savepoint);
+      }
+    } catch(SQLException e) {
+      throw new PropertyImplementationException("Cannot write " + key, e);
+    } finally {
+      release(c, null, null);
+    }
+  }
+
+  private void batch(int type, String key, Object value) throws PropertyException {
+    Integer stored = batchTypes.get(key);
+
+    try {
+      PreparedStatement ps;
+
+      if(stored == null) {
+        ps = prepare(held, insert);
+        bindInsert(ps, type, key, value);
+        batchTypes.put(key, type);
+      } else if(stored != type) {
+        throw new PropertyException("Existing key '" + key + "' does not have matching type of " + type(type));
+      } else {
+        ps = prepare(held, update[type]);
+        bindUpdate(ps, type, key, value);
+      }
+
+      ps.addBatch();
+
+      if(++batched >= batchSize) {
+        flushBatch();
+      }
+    } catch(SQLException e) {
+      throw new PropertyImplementationException("Cannot write " + key, e);
+    }
+  }
+
+  /**
+   * Execute writes batched so far, inserts first so that updates of keys added in the same batch find their row.
+   */
+  private void flushBatch() throws SQLException {
+    if(batched == 0) {
+      return;
+    }
+
+    PreparedStatement inserts = statements.get(insert);
+
+    if(inserts != null) {
+      inserts.executeBatch();
+    }
+
+    for(int type = 0; type < update.length; type++) {
+      PreparedStatement updates = (update[type] == null) ? null : statements.get(update[type]);
+
+      if(updates != null) {
+        updates.executeBatch();
+      }
+    }
+
+    batched = 0;
+  }
+
+  private void endBatchState() {
+    batchTypes = null;
+    batched = 0;
+
+    if(held == null) {
+      return;
+    }
+
+    try {
+      held.setAutoCommit(heldAutoCommit);
+    } catch(SQLException e) {
+      e.printStackTrace();
+    }
+
+    if(ownsHeld) {
+      for(PreparedStatement ps : statements.values()) {
+        close(ps);
+      }
+
+      close(held);
+      held = null;
+      statements = null;
+      ownsHeld = false;
+    } else {
+      //drop anything that was batched but never executed
+      for(PreparedStatement ps : statements.values()) {
+        try {
+          ps.clearBatch();
+        } catch(SQLException e) {
+          e.printStackTrace();
+        }
+      }
+    }
+  }
+
+  private void rollback() {
+    try {
+      held.rollback();
+    } catch(SQLException e) {
+      e.printStackTrace();
+    }
+  }
+
+  private int type(Connection c, String key) throws SQLException {
+    PreparedStatement ps = null;
+    ResultSet rs = null;
+
+    try {
+      ps = prepare(c, selectType);
+      bindKey(ps, key);
+      rs = ps.executeQuery();
+
+      return rs.next() ? rs.getInt(1) : 0;
+    } finally {
+      done(c, ps, rs);
+    }
+  }
+
+  private void checkType(Connection c, int type, String key) throws SQLException {
+    int stored = type(c, key);
+
+    if((stored != 0) && (stored != type)) {
+      throw new PropertyException("Existing key '" + key + "' does not have matching type of " + type(type));
+    }
+  }
+
+  private int update(Connection c, int type, String key, Object value) throws SQLException {
+    PreparedStatement ps = null;
+
+    try {
+      ps = prepare(c, update[type]);
+      bindUpdate(ps, type, key, value);
+
+      return ps.executeUpdate();
+    } finally {
+      done(c, ps, null);
+    }
+  }
+
+  private void insert(Connection c, int type, String key, Object value) throws SQLException {
+    PreparedStatement ps = null;
+
+    try {
+      ps = prepare(c, insert);
+      bindInsert(ps, type, key, value);
+      ps.executeUpdate();
+    } finally {
+      done(c, ps, null);
+    }
+  }
+
+  private void execute(String sql, String key) throws PropertyException {
+    Connection c = null;
+    PreparedStatement ps = null;
+
+    try {
+      c = acquire();
+      ps = prepare(c, sql);
+
+      if(key == null) {
+        bindEntity(ps);
+      } else {
+        bindKey(ps, key);
+      }
+
+      ps.executeUpdate();
+    } catch(SQLException e) {
+      throw new PropertyImplementationException("Cannot remove " + ((key == null) ? "properties of " + this : key), e);
+    } finally {
+      release(c, ps, null);
+    }
+  }
+
+  private int bindEntity(PreparedStatement ps) throws SQLException {
+    ps.setString(1, entityName);
+    ps.setLong(2, entityId);
+
+    return 3;
+  }
+
+  private void bindKey(PreparedStatement ps, String key) throws SQLException {
+    ps.setString(bindEntity(ps), key);
+  }
+
+  private void bindUpdate(PreparedStatement ps, int type, String key, Object value) throws SQLException {
+    bind(ps, 1, type, value);
+    ps.setString(2, entityName);
+    ps.setLong(3, entityId);
+    ps.setString(4, key);
+    ps.setInt(5, type);
+  }
+
+  private void bindInsert(PreparedStatement ps, int type, String key, Object value) throws SQLException {
+    bindKey(ps, key);
+    ps.setInt(4, type);
+    ps.setBoolean(5, false);
+    ps.setInt(6, 0);
+    ps.setLong(7, 0);
+    ps.setDouble(8, 0);
+    ps.setNull(9, Types.VARCHAR);
+    ps.setNull(10, Types.CLOB);
+    ps.setNull(11, Types.TIMESTAMP);
+    bind(ps, 4 + type, type, value);
+  }
+
+  private void bind(PreparedStatement ps, int index, int type, Object value) throws SQLException {
+    switch(type) {
+      case BOOLEAN:
+        ps.setBoolean(index, (Boolean)value);
+
+        break;
+
+      case INT:
+        ps.setInt(index, ((Number)value).intValue());
+
+        break;
+
+      case LONG:
+        ps.setLong(index, ((Number)value).longValue());
+
+        break;
+
+      case DOUBLE:
+        ps.setDouble(index, ((Number)value).doubleValue());
+
+        break;
+
+      case STRING:
+        ps.setString(index, (String)value);
+
+        break;
+
+      case TEXT:
+
+        if(value == null) {
+          ps.setNull(index, Types.CLOB);
+        } else {
+          String text = (String)value;
+          ps.setCharacterStream(index, new StringReader(text), text.length());
+        }
+
+        break;
+
+      case DATE:
+
+        if(value == null) {
+          ps.setNull(index, Types.TIMESTAMP);
+        } else {
+          ps.setTimestamp(index, new Timestamp(((Date)value).getTime()));
+        }
+
+        break;
+    }
+  }
+
+  private Object read(ResultSet rs, int column, int type) throws SQLException {
+    switch(type) {
+      case BOOLEAN:
+        return rs.getBoolean(column);
+
+      case INT:
+        return rs.getInt(column);
+
+      case LONG:
+        return rs.getLong(column);
+
+      case DOUBLE:
+        return rs.getDouble(column);
+
+      case STRING:
+      case TEXT:
+        return rs.getString(column);
+
+      case DATE:
+
+        Timestamp ts = rs.getTimestamp(column);
+
+        return (ts == null) ? null : new Date(ts.getTime());
+    }
+
+    return null;
+  }
+
+  /**
+   * Key range matching a prefix. Without an upper bound, every key from the prefix on starts with it.
+   */
+  private static String range(int variant) {
+    return (((variant & PREFIX) == 0) ? "" : " AND keyName >= ?") + (((variant & BEFORE) == 0) ? "" : " AND keyName < ?");
+  }
+
+  private static boolean isDuplicateKey(SQLException e) {
+    return (e instanceof SQLIntegrityConstraintViolationException) || ((e.getSQLState() != null) && e.getSQLState().startsWith("23"));
+  }
+
+  /**
+   * @return A savepoint on a connection within a transaction, or null if it is in auto-commit mode
+   * or the driver does not support savepoints there.
+   */
+  private static Savepoint savepoint(Connection c) {
+    try {
+      return c.getAutoCommit() ? null : c.setSavepoint();
+    } catch(SQLException e) {
+      //not supported, for example within a managed transaction
+      return null;
+    }
+  }
+
+  private static void release(Connection c, Savepoint savepoint) {
+    if(savepoint != null) {
+      try {
+        c.releaseSavepoint(savepoint);
+      } catch(SQLException e) {
+        //not supported by every driver, it goes away with the transaction anyway
+      }
+    }
+  }
+
+  private Connection acquire() throws SQLException {
+    if(held != null) {
+      if(batchTypes != null) {
+        //reads and deletes have to see what was batched so far
+        flushBatch();
+      }
+
+      return held;
+    }
+
+    return dataSource.getConnection();
+  }
+
+  private PreparedStatement prepare(Connection c, String sql) throws SQLException {
+    if(c != held) {
+      return c.prepareStatement(sql);
+    }
+
+    PreparedStatement ps = statements.get(sql);
+
+    if(ps == null) {
+      ps = c.prepareStatement(sql);
+      statements.put(sql, ps);
+    }
+
+    return ps;
+  }
+
+  /**
+   * Close what was used for a call, leaving statements cached on a held connection open.
+   */
+  private void release(Connection c, PreparedStatement ps, ResultSet rs) {
+    done(c, ps, rs);
+
+    if((c != null) && (c != held)) {
+      close(c);
+    }
+  }
+
+  private void done(Connection c, PreparedStatement ps, ResultSet rs) {
+    close(rs);
+
+    if(c != held) {
+      close(ps);
+    }
+  }
+
+  private Map<String, PreparedStatement> statementCache() {
+    return new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+      protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+        //statements with pending batches are never evicted, flushBatch looks them up again
+        if((size() > statementCacheSize) && (batched == 0)) {
+          close(eldest.getValue());
+
+          return true;
+        }
+
+        return false;
+      }
+    };
+  }
+
+  private static void close(ResultSet rs) {
+    if(rs != null) {
+      try {
+        rs.close();
+      } catch(SQLException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  private static void close(Statement s) {
+    if(s != null) {
+      try {
+        s.close();
+      } catch(SQLException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  private static void close(Connection c) {
+    try {
+      c.close();
+    } catch(SQLException e) {
+      e.printStackTrace();
+    }
+  }
+}
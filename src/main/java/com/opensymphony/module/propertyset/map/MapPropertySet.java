@@ -123,6 +123,19 @@ public class MapPropertySet extends AbstractPropertySet {
     map.put(key, value);
   }
 
+  /**
+   * The type parameter is ignored.
+   */
+  public synchronized Object lookup(int type, String key) {
+    Object value = map.get(key);
+
+    if((value == null) && !map.containsKey(key)) {
+      return NOT_FOUND;
+    }
+
+    return value;
+  }
+
   /**
    * The type parameter is ignored.
    */
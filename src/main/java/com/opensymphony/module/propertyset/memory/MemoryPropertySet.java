@@ -69,6 +69,28 @@ public class MemoryPropertySet extends AbstractPropertySet {
     map = new HashMap<String, Object>();
   }
 
+  /**
+   * Visits a copy of the entries taken under the lock, so that the visitor may use this set.
+   */
+  public void visitEntries(String prefix, Visitor visitor) {
+    Map<String, ValueEntry> entries = new TreeMap<String, ValueEntry>();
+
+    synchronized(this) {
+      for(Map.Entry<String, Object> entry : getMap().entrySet()) {
+        if((prefix == null) || entry.getKey().startsWith(prefix)) {
+          ValueEntry v = (ValueEntry)entry.getValue();
+          entries.put(entry.getKey(), new ValueEntry(v.type, v.value));
+        }
+      }
+    }
+
+    for(Map.Entry<String, ValueEntry> entry : entries.entrySet()) {
+      if(!visitor.visit(entry.getKey(), entry.getValue().type, entry.getValue().value)) {
+        return;
+      }
+    }
+  }
+
   public synchronized void remove(String key) {
     getMap().remove(key);
   }
@@ -110,6 +132,20 @@ public class MemoryPropertySet extends AbstractPropertySet {
     }
   }
 
+  public synchronized Object lookup(int type, String key) throws InvalidPropertyTypeException {
+    ValueEntry v = (ValueEntry)getMap().get(key);
+
+    if(v == null) {
+      return NOT_FOUND;
+    }
+
+    if(v.type != type) {
+      throw new InvalidPropertyTypeException();
+    }
+
+    return v.value;
+  }
+
   //~ Inner Classes //////////////////////////////////////////////////////////
 
   public static final class ValueEntry implements Serializable {
@@ -0,0 +1,405 @@
+/*
+ * Copyright (c) 2002-2003 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.module.propertyset.overlay;
+
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.opensymphony.module.propertyset.*;
+
+/**
+ * PropertySet that overlays a stack of layers (for example user over tenant over
+ * environment over defaults) and serves reads from a flattened, immutable view of
+ * the merged result.
+ * <p/>
+ * <p>Unlike {@link com.opensymphony.module.propertyset.aggregate.AggregatePropertySet},
+ * which walks the layers on every read, this set resolves every key once when it is
+ * initialised. Reads are then a single map lookup however many layers there are, and
+ * <code>getKeys</code> comes straight from the sorted index of the merged view.</p>
+ * <p/>
+ * <p>The view is replaced, never modified, so readers never block. Changes made through
+ * this set update it automatically. Changes made to a layer directly must be reported
+ * through {@link #layerChanged(PropertySet, String)}, which re-resolves just the affected
+ * key, or {@link #refresh()}, which rebuilds the whole view.</p>
+ * <p/>
+ * <b>Optional Args</b>
+ * <ul>
+ * <li><b>PropertySets</b> - a List of PropertySet layers, highest priority first</li>
+ * </ul>
+ */
+public class OverlayPropertySet extends AbstractPropertySet {
+  //~ Static fields/initializers /////////////////////////////////////////////
+
+  private static final String[] NO_KEYS = new String[0];
+
+  //~ Instance fields ////////////////////////////////////////////////////////
+
+  private List<PropertySet> layers;
+  private volatile View view = new View(new HashMap<String, Entry>(), NO_KEYS);
+
+  //~ Methods ////////////////////////////////////////////////////////////////
+
+  public Collection<String> getKeys(String prefix, int type) throws PropertyException {
+    View v = view;
+    String[] keys = v.keys;
+    int start = 0;
+    int end = keys.length;
+
+    if(prefix != null) {
+      start = insertionPoint(keys, prefix);
+      end = start;
+
+      while((end < keys.length) && keys[end].startsWith(prefix)) {
+        end++;
+      }
+    }
+
+    List<String> result = new ArrayList<String>(end - start);
+
+    for(int i = start; i < end; i++) {
+      if((type == 0) || (v.entries.get(keys[i]).type == type)) {
+        result.add(keys[i]);
+      }
+    }
+
+    return result;
+  }
+
+  public boolean isSettable(String property) {
+    for(PropertySet layer : layers) {
+      if(layer.isSettable(property)) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  public int getType(String key) throws PropertyException {
+    Entry entry = view.entries.get(key);
+
+    return (entry == null) ? 0 : entry.type;
+  }
+
+  public boolean exists(String key) throws PropertyException {
+    return view.entries.containsKey(key);
+  }
+
+  public void init(Map<String, String> config, Map<String, Object> args) {
+    //a private copy, as layers are iterated without locking while addPropertySet may append
+    layers = new CopyOnWriteArrayList<PropertySet>();
+
+    List<PropertySet> sets = (List<PropertySet>)args.get("PropertySets");
+
+    if(sets != null) {
+      layers.addAll(sets);
+    }
+
+    refresh();
+  }
+
+  /**
+   * Add a layer below all the existing ones.
+   */
+  public synchronized void addPropertySet(PropertySet layer) {
+    layers.add(layer);
+    refresh();
+  }
+
+  /**
+   * Rebuild the merged view from scratch.
+   */
+  public synchronized void refresh() {
+    Map<String, Entry> entries = new HashMap<String, Entry>();
+
+    //lowest priority first, so that higher layers overwrite
+    for(int i = layers.size() - 1; i >= 0; i--) {
+      PropertySet layer = layers.get(i);
+
+      for(String key : layer.getKeys()) {
+        Entry entry = resolve(layer, key);
+
+        if(entry != null) {
+          entries.put(key, entry);
+        }
+      }
+    }
+
+    String[] keys = entries.keySet().toArray(new String[entries.size()]);
+    Arrays.sort(keys);
+    view = new View(entries, keys);
+  }
+
+  /**
+   * Report that a layer has changed outside of this set.
+   *
+   * @param layer The layer that changed.
+   * @param key The key that was set or removed, or null if the whole layer changed.
+   */
+  public void layerChanged(PropertySet layer, String key) {
+    if(key == null) {
+      refresh();
+    } else {
+      layerChanged(layer, Collections.singleton(key));
+    }
+  }
+
+  /**
+   * Report that several keys of a layer have changed outside of this set.
+   * Only these keys are re-resolved, and the view is replaced once.
+   */
+  public synchronized void layerChanged(PropertySet layer, Collection<String> keys) {
+    View v = view;
+    Map<String, Entry> entries = new HashMap<String, Entry>(v.entries);
+    boolean keysChanged = false;
+
+    for(String key : keys) {
+      Entry entry = null;
+
+      for(PropertySet candidate : layers) {
+        entry = resolve(candidate, key);
+
+        if(entry != null) {
+          break;
+        }
+      }
+
+      if(entry == null) {
+        keysChanged |= (entries.remove(key) != null);
+      } else {
+        keysChanged |= (entries.put(key, entry) == null);
+      }
+    }
+
+    String[] sorted = v.keys;
+
+    if(keysChanged) {
+      sorted = entries.keySet().toArray(new String[entries.size()]);
+      Arrays.sort(sorted);
+    }
+
+    view = new View(entries, sorted);
+  }
+
+  public Object lookup(int type, String key) throws PropertyException {
+    Entry entry = view.entries.get(key);
+
+    if(entry == null) {
+      return NOT_FOUND;
+    }
+
+    if(entry.typed && (entry.type != type)) {
+      throw new InvalidPropertyTypeException(key + " is not of type " + type(type));
+    }
+
+    return entry.value;
+  }
+
+  public void remove() throws PropertyException {
+    for(PropertySet layer : layers) {
+      layer.remove();
+    }
+
+    refresh();
+  }
+
+  public void remove(String key) throws PropertyException {
+    for(PropertySet layer : layers) {
+      try {
+        layer.remove(key);
+      } catch(PropertyException ex) {
+        //we don't really care about these
+      }
+    }
+
+    layerChanged(null, key);
+  }
+
+  /**
+   * Sets the property in the highest priority layer that accepts it.
+   */
+  protected void setImpl(int type, String key, Object value) throws PropertyException {
+    for(PropertySet layer : layers) {
+      if(layer.isSettable(key)) {
+        set(layer, type, key, value);
+        layerChanged(layer, key);
+
+        return;
+      }
+    }
+
+    throw new IllegalPropertyException("No layer accepts " + key);
+  }
+
+  protected Object get(int type, String key) throws PropertyException {
+    Object value = lookup(type, key);
+
+    return (value == NOT_FOUND) ? null : value;
+  }
+
+  /**
+   * Read a key from a layer.
+   *
+   * @return The entry, or null if the layer does not have the key.
+   */
+  private Entry resolve(PropertySet layer, String key) {
+    if(!layer.supportsTypes()) {
+      if(!layer.exists(key)) {
+        return null;
+      }
+
+      Object value = layer.getObject(key);
+
+      return new Entry(typeOf(value), value, false);
+    }
+
+    int type;
+
+    try {
+      type = layer.getType(key);
+    } catch(PropertyException ex) {
+      return null;
+    }
+
+    if(type == 0) {
+      return null;
+    }
+
+    Object value;
+
+    if(layer instanceof TypedLookup) {
+      value = ((TypedLookup)layer).lookup(type, key);
+
+      if(value == NOT_FOUND) {
+        return null;
+      }
+    } else {
+      value = get(layer, type, key);
+    }
+
+    return new Entry(type, value, true);
+  }
+
+  private static Object get(PropertySet ps, int type, String key) {
+    switch(type) {
+      case BOOLEAN:
+        return ps.getBoolean(key);
+
+      case INT:
+        return ps.getInt(key);
+
+      case LONG:
+        return ps.getLong(key);
+
+      case DOUBLE:
+        return ps.getDouble(key);
+
+      case STRING:
+        return ps.getString(key);
+
+      case TEXT:
+        return ps.getText(key);
+
+      case DATE:
+        return ps.getDate(key);
+
+      default:
+        return ps.getObject(key);
+    }
+  }
+
+  private static void set(PropertySet ps, int type, String key, Object value) {
+    switch(type) {
+      case BOOLEAN:
+        ps.setBoolean(key, (Boolean)value);
+
+        break;
+
+      case INT:
+        ps.setInt(key, ((Number)value).intValue());
+
+        break;
+
+      case LONG:
+        ps.setLong(key, ((Number)value).longValue());
+
+        break;
+
+      case DOUBLE:
+        ps.setDouble(key, ((Number)value).doubleValue());
+
+        break;
+
+      case STRING:
+        ps.setString(key, (String)value);
+
+        break;
+
+      case TEXT:
+        ps.setText(key, (String)value);
+
+        break;
+
+      case DATE:
+        ps.setDate(key, (Date)value);
+
+        break;
+
+      default:
+        ps.setObject(key, value);
+    }
+  }
+
+  private static int typeOf(Object value) {
+    if(value instanceof Boolean) {
+      return BOOLEAN;
+    } else if(value instanceof Integer) {
+      return INT;
+    } else if(value instanceof Long) {
+      return LONG;
+    } else if(value instanceof Double) {
+      return DOUBLE;
+    } else if(value instanceof String) {
+      return (value.toString().length() > 255) ? TEXT : STRING;
+    } else if(value instanceof Date) {
+      return DATE;
+    }
+
+    return OBJECT;
+  }
+
+  private static int insertionPoint(String[] keys, String key) {
+    int i = Arrays.binarySearch(keys, key);
+
+    return (i < 0) ? (-i - 1) : i;
+  }
+
+  //~ Inner Classes //////////////////////////////////////////////////////////
+
+  private static final class Entry {
+    final int type;
+    final Object value;
+    final boolean typed;
+
+    Entry(int type, Object value, boolean typed) {
+      this.type = type;
+      this.value = value;
+      this.typed = typed;
+    }
+  }
+
+  /**
+   * Immutable merged view of the layers.
+   */
+  private static final class View {
+    final Map<String, Entry> entries;
+    final String[] keys;
+
+    View(Map<String, Entry> entries, String[] keys) {
+      this.entries = entries;
+      this.keys = keys;
+    }
+  }
+}